@@ -0,0 +1,194 @@
+// Owen Gregson, Peter Zhao
+// Algorithms
+// Final Project
+// May 18, 2024
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+public class Benchmark {
+
+    private static void help() {
+        System.out.println("Usage: java Benchmark <options>");
+        System.out.println();
+        System.out.println("   Times the engines that compute every item-centroid cosine distance (the");
+        System.out.println("   assignment step of K-Means) and, for each distance measure, the fused");
+        System.out.println("   engine that only keeps each item's nearest centroid, and checks that they");
+        System.out.println("   agree exactly with the scalar reference.  The fused engine is timed on");
+        System.out.println("   dense (widened) items and on sparse items (their nonzero pixels only).");
+        System.out.println("   Each engine is warmed up and then timed several times; the best time is");
+        System.out.println("   shown together with the rate of pixel operations.");
+        System.out.println();
+        System.out.println("   -help               Display this help message");
+        System.out.println("   -in <prefix>        Use the images in <prefix>-images (default: random images)");
+        System.out.println("   -items <count>      Number of items (default: 6000, or all images of -in)");
+        System.out.println("   -k <K>              Number of centroids (may be repeated; default: 60 and 1000)");
+        System.out.println("   -repeat <count>     Number of timed runs of each engine (default: 5)");
+        System.out.println("   -scalar             Also time the scalar (double) reference kernel");
+        System.out.println("   -density <d>        Fraction of nonzero pixels of the random images (default: 0.2)");
+        System.out.println();
+    }
+
+    private interface Engine {
+        void run(Dataset items, double[] norms, Image[] centroids, double[][] distances);
+    }
+
+    private static void scalar(Dataset items, double[] norms, Image[] centroids, double[][] distances) {
+        // One pair at a time, accumulating in double
+        byte[][] pixels = Arrays.stream(centroids).map(Image::copy).toArray(byte[][]::new);
+        double[] centroidNorms = Arrays.stream(pixels).mapToDouble(Dataset::norm).toArray();
+        IntStream.range(0, items.size()).parallel().forEach(i -> {
+            byte[] item = items.read(i, new byte[items.length()]);
+            for (int c = 0; c < pixels.length; c++) {
+                distances[i][c] = Final.cosineDistance(item, norms[i], pixels[c], centroidNorms[c]);
+            }
+        });
+    }
+
+    private static void pairwise(Dataset items, double[] norms, Image[] centroids, double[][] distances) {
+        // One pair at a time, with the integer kernel
+        Centroids model = Centroids.of(centroids);
+        IntStream.range(0, items.size()).parallel().forEach(i -> {
+            int[] item = Kernels.widen(items.read(i, new byte[items.length()]));
+            for (int c = 0; c < model.k(); c++) {
+                distances[i][c] = model.cosineDistance(item, norms[i], c);
+            }
+        });
+    }
+
+    private static void blocked(Dataset items, double[] norms, Image[] centroids, double[][] distances) {
+        Centroids.of(centroids).cosineDistances(items, norms, distances);
+    }
+
+    private static long time(Runnable engine, int repeat) {
+        // The best time (in ns) of repeat runs, after two runs to warm up
+        for (int i = 0; i < 2; i++) {
+            engine.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < repeat; i++) {
+            long start = System.nanoTime();
+            engine.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static void report(String name, long time, Dataset items, Image[] centroids, boolean same) {
+        double operations = (double) items.size() * centroids.length * items.length();
+        System.out.printf("   %-16s %9.1f ms %8.2f G pixel ops/s%s\n", name, time / 1e6, operations / time, same ? "" : "   ** RESULTS DIFFER **");
+    }
+
+    private static double[][] time(String name, Engine engine, Dataset items, Image[] centroids, int repeat, double[][] expected) {
+        double[] norms = items.norms();
+        double[][] distances = new double[items.size()][centroids.length];
+        long time = time(() -> engine.run(items, norms, centroids, distances), repeat);
+        report(name, time, items, centroids, expected == null || Arrays.deepEquals(expected, distances));
+        return distances;
+    }
+
+    private static void fused(DistanceKernel kernel, Dataset items, SparseItems sparse, Image[] centroids, int repeat) {
+        // The fused engine, on dense (widened) items or on sparse ones
+        int[] nearest = new int[items.size()];
+        double[] distances = new double[items.size()];
+        long time = time(() -> Centroids.of(centroids).assign(kernel, items, sparse, null, nearest, distances), repeat);
+        double[][] pixels = Arrays.stream(centroids).map(Final::centroidValues).toArray(double[][]::new);
+        boolean same = IntStream.range(0, items.size()).parallel().allMatch(i -> {
+            byte[] item = items.read(i, new byte[items.length()]);
+            int best = 0;
+            double bestDistance = kernel.distance(item, pixels[0]);
+            for (int c = 1; c < pixels.length; c++) {
+                double distance = kernel.distance(item, pixels[c]);
+                if (Double.compare(distance, bestDistance) < 0) {
+                    best = c;
+                    bestDistance = distance;
+                }
+            }
+            return nearest[i] == best && distances[i] == bestDistance;
+        });
+        report((sparse == null ? "fused " : "sparse ") + kernel.name(), time, items, centroids, same);
+    }
+
+    private static Dataset random(int size, int rows, int columns, double density) {
+        // Sparse, digit-like images: mostly white with some dark pixels
+        Random random = new Random(1);
+        Dataset items = new Dataset(size, rows, columns);
+        byte[] pixels = new byte[rows * columns];
+        for (int i = 0; i < size; i++) {
+            for (int p = 0; p < pixels.length; p++) {
+                pixels[p] = (byte) (random.nextDouble() < density ? 128 + random.nextInt(128) : 0);
+            }
+            items.write(i, pixels);
+        }
+        return items;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String input = null;
+        int size = -1;
+        int repeat = 5;
+        boolean scalar = false;
+        double density = 0.2;
+        List<Integer> ks = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-in":
+                    input = args[++i];
+                    break;
+                case "-items":
+                    size = Integer.parseInt(args[++i]);
+                    break;
+                case "-k":
+                    ks.add(Integer.parseInt(args[++i]));
+                    break;
+                case "-repeat":
+                    repeat = Integer.parseInt(args[++i]);
+                    break;
+                case "-scalar":
+                    scalar = true;
+                    break;
+                case "-density":
+                    density = Double.parseDouble(args[++i]);
+                    break;
+                case "-help":
+                    help();
+                    return;
+                default:
+                    System.out.println("Unknown option: " + args[i]);
+                    help();
+                    return;
+            }
+        }
+        if (ks.isEmpty()) ks = List.of(60, 1000);
+
+        Dataset items;
+        if (input != null) {
+            Dataset all = Image.readDataset(input + "-images", input + "-labels");
+            items = size < 0 || size >= all.size() ? all : Dataset.of(Arrays.copyOfRange(all.images(), 0, size));
+        } else {
+            items = random(size < 0 ? 6000 : size, 28, 28, density);
+        }
+
+        Random random = new Random(2);
+        for (int k : ks) {
+            Image[] centroids = new Image[k];
+            for (int c = 0; c < k; c++) {
+                centroids[c] = items.image(random.nextInt(items.size()));
+            }
+            System.out.printf("%d items x %d centroids (%d pixels, %.1f%% nonzero):\n", items.size(), k, items.length(), items.sparse().density() * 100);
+            double[][] expected = time("pairwise", Benchmark::pairwise, items, centroids, repeat, null);
+            time("blocked", Benchmark::blocked, items, centroids, repeat, expected);
+            for (DistanceKernel kernel : List.of(DistanceKernel.COSINE, DistanceKernel.EUCLIDEAN, DistanceKernel.MANHATTAN)) {
+                fused(kernel, items, null, centroids, repeat);
+                fused(kernel, items, items.sparse(), centroids, repeat);
+            }
+            if (scalar) time("scalar", Benchmark::scalar, items, centroids, repeat, expected);
+            System.out.println();
+        }
+    }
+}
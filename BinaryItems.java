@@ -0,0 +1,121 @@
+// Owen Gregson, Peter Zhao
+// Algorithms
+// Final Project
+// May 18, 2024
+
+import java.util.stream.IntStream;
+
+public class BinaryItems {
+
+    // Every item of a data set as a black and white bit vector: a pixel is black (1)
+    // if its value is at least a threshold, as in Image.toString(threshold).  Pixels
+    // are packed 64 to a long, so a 28 x 28 digit is 13 longs instead of 784 bytes,
+    // and a distance is a popcount of the XOR (Hamming) or of the AND (Jaccard) of
+    // two vectors, one instruction per 64 pixels.  The centroid of a cluster is the
+    // majority vote of its members: the pixels black in more than half of them.
+
+    public enum Distance { HAMMING, JACCARD }
+
+    private final int length;    // Number of pixels of each item
+    private final int words;     // Longs per item
+    private final long[] bits;   // Item i is bits[i * words, (i + 1) * words), pixel p in bit p % 64 of word p / 64
+    private final int[] counts;  // The number of black pixels of each item
+
+    private BinaryItems(int length, long[] bits, int[] counts) {
+        this.length = length;
+        this.words = words(length);
+        this.bits = bits;
+        this.counts = counts;
+    }
+
+    private static int words(int length) {
+        return (length + 63) / 64;
+    }
+
+    public static BinaryItems of(Dataset items, int threshold) {
+        // The items' pixels at or above threshold, packed in parallel
+        int size = items.size(), length = items.length(), words = words(length);
+        long[] bits = new long[Math.multiplyExact(size, words)];
+        int[] counts = new int[size];
+        IntStream.range(0, size).parallel().forEach(i -> {
+            byte[] pixels = Final.read(items, i);
+            for (int p = 0; p < length; p++) {
+                if ((pixels[p] & 0xFF) >= threshold) bits[i * words + p / 64] |= 1L << p;
+            }
+            counts[i] = count(bits, i * words, words);
+        });
+        return new BinaryItems(length, bits, counts);
+    }
+
+    public int size() {
+        return this.counts.length;
+    }
+
+    public int words() {
+        return this.words;
+    }
+
+    public long[] item(int item) {
+        long[] vector = new long[this.words];
+        System.arraycopy(this.bits, item * this.words, vector, 0, this.words);
+        return vector;
+    }
+
+    public static int count(long[] vector) {
+        return count(vector, 0, vector.length);
+    }
+
+    private static int count(long[] bits, int from, int words) {
+        int count = 0;
+        for (int w = from; w < from + words; w++) {
+            count += Long.bitCount(bits[w]);
+        }
+        return count;
+    }
+
+    public double distance(Distance distance, int item, long[] centroid, int centroidCount) {
+        // The distance of an item to a vector with centroidCount black pixels: the number
+        // of pixels that differ, or 1 - |both black| / |either black| (0 if both are white)
+        int offset = item * this.words;
+        if (distance == Distance.HAMMING) {
+            int differences = 0;
+            for (int w = 0; w < this.words; w++) {
+                differences += Long.bitCount(this.bits[offset + w] ^ centroid[w]);
+            }
+            return differences;
+        }
+        int both = 0;
+        for (int w = 0; w < this.words; w++) {
+            both += Long.bitCount(this.bits[offset + w] & centroid[w]);
+        }
+        int either = this.counts[item] + centroidCount - both;
+        return either == 0 ? 0.0 : 1 - both / (double) either;
+    }
+
+    public long[] majority(int[] members) {
+        // The pixels black in more than half of the members (which must not be empty).
+        // Only the black pixels of each member are visited, from its set bits
+        int[] votes = new int[this.length];
+        for (int item : members) {
+            for (int w = 0, offset = item * this.words; w < this.words; w++) {
+                for (long word = this.bits[offset + w]; word != 0; word &= word - 1) {
+                    votes[w * 64 + Long.numberOfTrailingZeros(word)]++;
+                }
+            }
+        }
+        long[] vector = new long[this.words];
+        for (int p = 0; p < this.length; p++) {
+            if (2 * votes[p] > members.length) vector[p / 64] |= 1L << p;
+        }
+        return vector;
+    }
+
+    public double[] pixels(long[] vector) {
+        // A vector as pixel values: 255 for black and 0 for white
+        double[] pixels = new double[this.length];
+        for (int p = 0; p < this.length; p++) {
+            if ((vector[p / 64] & (1L << p)) != 0) pixels[p] = 255;
+        }
+        return pixels;
+    }
+}
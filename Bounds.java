@@ -0,0 +1,216 @@
+// Owen Gregson, Peter Zhao
+// Algorithms
+// Final Project
+// May 18, 2024
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+public class Bounds {
+
+    // An assignment engine that skips item-centroid distances which cannot change
+    // an item's nearest centroid, using the triangle inequality on the metric of a
+    // DistanceKernel.  Every item keeps an upper bound on the distance to its own
+    // centroid and lower bounds on the distances to the others: one bound per
+    // centroid (Elkan) or a single bound for all of them (Hamerly).  When centroids
+    // move, each bound is loosened by how far the centroids moved, which is measured
+    // directly, so any centroid update (weighted, reinitialized, ...) is allowed.
+    //
+    // Elkan prunes more but keeps N x K bounds (as floats, rounded down) on the heap,
+    // so it is used for small K when those fit in ELKAN_MAX_BYTES, and Hamerly (N
+    // bounds) otherwise.  Items are only skipped when a bound
+    // is beaten by a clear margin, so the assignments are exactly those of a full
+    // search, ties included.
+
+    public enum Mode { ELKAN, HAMERLY }
+
+    public static final int ELKAN_MAX_K = 100;                // Largest K for which Elkan is selected
+    public static final long ELKAN_MAX_BYTES = 256L << 20;    // Largest N x K lower bounds for which Elkan is selected
+    private static final double MARGIN = 1e-9;                // Relative slack for rounding in the bounds
+
+    private static final ThreadLocal<int[]> scratch = ThreadLocal.withInitial(() -> new int[0]);
+    private static final ThreadLocal<double[]> metrics = ThreadLocal.withInitial(() -> new double[0]);
+
+    private final DistanceKernel kernel;
+    private final Dataset items;
+    private final Mode mode;
+    private final int k;
+    private final double[] upper;       // Upper bound on each item's distance to its centroid
+    private final float[] lower;        // Lower bounds (Elkan: N x K, item-major; Hamerly: N)
+    private double[][] previous;        // Centroid values of the last assignment
+    private long evaluations;           // Distances computed by the last assignment
+
+    public Bounds(DistanceKernel kernel, Dataset items, int k, Mode mode) {
+        this.kernel = kernel;
+        this.items = items;
+        this.mode = mode;
+        this.k = k;
+        this.upper = new double[items.size()];
+        this.lower = new float[mode == Mode.ELKAN ? Math.multiplyExact(items.size(), k) : items.size()];
+    }
+
+    public static Mode select(int n, int k) {
+        return k <= ELKAN_MAX_K && (long) n * k * Float.BYTES <= ELKAN_MAX_BYTES ? Mode.ELKAN : Mode.HAMERLY;
+    }
+
+    public Mode mode() {
+        return this.mode;
+    }
+
+    public long evaluations() {
+        return this.evaluations;
+    }
+
+    private static boolean below(double upper, double bound) {
+        // Whether upper is clearly less than bound (allowing for rounding in both)
+        return upper + MARGIN * (1 + upper) < bound;
+    }
+
+    private static float down(double value) {
+        // The largest float not above value (so a lower bound stays a lower bound)
+        float result = (float) value;
+        return result > value ? Math.nextDown(result) : result;
+    }
+
+    private int[] widen(int item) {
+        int[] pixels = scratch.get();
+        if (pixels.length != this.items.length()) scratch.set(pixels = new int[this.items.length()]);
+        return Kernels.widen(Final.read(this.items, item), pixels);
+    }
+
+    public void assign(Centroids model, int[] nearest) {
+        // nearest[i] = the centroid closest to item i (exactly as Centroids.assign); after
+        // the first call, nearest must hold the result of the previous call
+        double[][] pixels = IntStream.range(0, this.k).mapToObj(model::pixels).toArray(double[][]::new);
+        long[] squaredNorms = this.items.squaredNorms();
+        double[] norms = this.items.norms();
+
+        if (this.previous == null) {
+            this.evaluations = IntStream.range(0, this.items.size()).parallel()
+                .mapToLong(i -> initialize(model, widen(i), squaredNorms[i], norms[i], i, nearest)).sum();
+            this.previous = pixels;
+            return;
+        }
+
+        // How far each centroid moved, and the distances between centroids
+        double[] drift = IntStream.range(0, this.k).parallel().mapToDouble(c -> this.kernel.metric(this.previous[c], pixels[c])).toArray();
+        double[][] between = new double[this.k][this.k];
+        IntStream.range(0, this.k).parallel().forEach(a -> {
+            for (int b = a + 1; b < this.k; b++) {
+                between[a][b] = this.kernel.metric(pixels[a], pixels[b]);
+            }
+        });
+        double[] half = new double[this.k];         // Half the distance to the closest other centroid
+        Arrays.fill(half, Double.POSITIVE_INFINITY);
+        for (int a = 0; a < this.k; a++) {
+            for (int b = a + 1; b < this.k; b++) {
+                between[b][a] = between[a][b];
+                half[a] = Math.min(half[a], between[a][b] / 2);
+                half[b] = Math.min(half[b], between[a][b] / 2);
+            }
+        }
+        int farthest = 0;                           // The centroid that moved most
+        for (int c = 1; c < this.k; c++) {
+            if (drift[c] > drift[farthest]) farthest = c;
+        }
+        double[] otherDrift = new double[this.k];   // How far the other centroids moved, at most
+        for (int c = 0; c < this.k; c++) {
+            if (c != farthest) otherDrift[farthest] = Math.max(otherDrift[farthest], drift[c]);
+        }
+        for (int c = 0; c < this.k; c++) {
+            if (c != farthest) otherDrift[c] = drift[farthest];
+        }
+
+        this.evaluations = IntStream.range(0, this.items.size()).parallel().mapToLong(i -> this.mode == Mode.ELKAN
+            ? elkan(model, i, squaredNorms[i], norms[i], nearest, drift, between, half)
+            : hamerly(model, i, squaredNorms[i], norms[i], nearest, drift, half, otherDrift[nearest[i]])).sum();
+        this.previous = pixels;
+    }
+
+    private long initialize(Centroids model, int[] item, long squaredNorm, double norm, int i, int[] nearest) {
+        // A full search, setting every bound exactly
+        double[] metrics = Bounds.metrics.get();
+        if (metrics.length != this.k) Bounds.metrics.set(metrics = new double[this.k]);
+        int best = 0;
+        double bestDistance = 0.0;
+        for (int c = 0; c < this.k; c++) {
+            double distance = this.kernel.distance(item, squaredNorm, norm, model, c);
+            metrics[c] = this.kernel.metric(distance);
+            if (this.mode == Mode.ELKAN) this.lower[i * this.k + c] = down(metrics[c]);
+            if (c == 0 || Double.compare(distance, bestDistance) < 0) {
+                best = c;
+                bestDistance = distance;
+            }
+        }
+        nearest[i] = best;
+        this.upper[i] = metrics[best];
+        if (this.mode == Mode.HAMERLY) {
+            double second = Double.POSITIVE_INFINITY;
+            for (int c = 0; c < this.k; c++) {
+                if (c != best) second = Math.min(second, metrics[c]);
+            }
+            this.lower[i] = down(second);
+        }
+        return this.k;
+    }
+
+    private long elkan(Centroids model, int i, long squaredNorm, double norm, int[] nearest, double[] drift, double[][] between, double[] half) {
+        int offset = i * this.k;
+        for (int c = 0; c < this.k; c++) {
+            this.lower[offset + c] = down(Math.max(this.lower[offset + c] - drift[c], 0.0));
+        }
+        int best = nearest[i];
+        double upper = this.upper[i] + drift[best];
+        this.upper[i] = upper;
+        if (below(upper, half[best])) return 0;
+
+        long evaluations = 0;
+        boolean tight = false;
+        double bestDistance = 0.0;
+        int[] item = null;
+        for (int c = 0; c < this.k; c++) {
+            if (c == best || below(upper, this.lower[offset + c]) || below(upper, between[best][c] / 2)) continue;
+            if (!tight) {
+                // Make the upper bound exact, then test again
+                if (item == null) item = widen(i);
+                bestDistance = this.kernel.distance(item, squaredNorm, norm, model, best);
+                upper = this.kernel.metric(bestDistance);
+                this.lower[offset + best] = down(upper);
+                evaluations++;
+                tight = true;
+                if (below(upper, this.lower[offset + c]) || below(upper, between[best][c] / 2)) continue;
+            }
+            double distance = this.kernel.distance(item, squaredNorm, norm, model, c);
+            double metric = this.kernel.metric(distance);
+            this.lower[offset + c] = down(metric);
+            evaluations++;
+            int order = Double.compare(distance, bestDistance);
+            if (order < 0 || (order == 0 && c < best)) {
+                best = c;
+                bestDistance = distance;
+                upper = metric;
+            }
+        }
+        nearest[i] = best;
+        this.upper[i] = upper;
+        return evaluations;
+    }
+
+    private long hamerly(Centroids model, int i, long squaredNorm, double norm, int[] nearest, double[] drift, double[] half, double otherDrift) {
+        int best = nearest[i];
+        double upper = this.upper[i] + drift[best];
+        double lower = Math.max(this.lower[i] - otherDrift, 0.0);
+        this.upper[i] = upper;
+        this.lower[i] = down(lower);
+        double bound = Math.max(half[best], lower);
+        if (below(upper, bound)) return 0;
+
+        // Make the upper bound exact, then test again
+        int[] item = widen(i);
+        upper = this.kernel.metric(this.kernel.distance(item, squaredNorm, norm, model, best));
+        this.upper[i] = upper;
+        if (below(upper, bound)) return 1;
+
+        return 1 + initialize(model, item, squaredNorm, norm, i, nearest);
+    }
+}
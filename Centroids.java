@@ -0,0 +1,386 @@
+// Owen Gregson, Peter Zhao
+// Algorithms
+// Final Project
+// May 18, 2024
+
+import java.util.stream.IntStream;
+
+public class Centroids {
+
+    // A set of centroids in the form the distance kernels use: each centroid is an
+    // int vector of fixed-point pixel values (value * 2^shift, so a shift of 0 holds
+    // whole pixel values, exactly like a byte image), with its squared norm summed
+    // exactly as a long.  Dot products with items are exact integers, so the only
+    // floating-point arithmetic per item-centroid pair is the final cosine, and
+    // assignments are reproducible on any JVM.
+
+    public static final int MAX_SHIFT = 15;       // 255 * 255 * 2^15 < 2^31
+    public static final int ITEM_TILE = 16;       // Items widened and compared together (16 * 784 ints: 50KB)
+    public static final int CENTROID_TILE = 32;   // Centroids compared with a tile of items (32 * 784 ints: 100KB)
+    public static final int SPARSE_TILE = 256;    // Centroids compared with a tile of sparse items (one pixel: 1KB)
+
+    private static final ThreadLocal<int[][]> tiles = ThreadLocal.withInitial(() -> new int[0][]);
+    private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[0]);
+    private static final ThreadLocal<int[]> partials = ThreadLocal.withInitial(() -> new int[0]);
+    private static final ThreadLocal<long[]> products = ThreadLocal.withInitial(() -> new long[0]);
+
+    private final int shift;             // Number of fractional bits of each value
+    private final int length;            // Number of values in each centroid
+    private final int block;             // Products an int may accumulate (see Kernels.block)
+    private final int differenceBlock;   // Absolute differences an int may accumulate
+    private final int[][] values;        // The fixed-point values of each centroid
+    private final long[] squaredNorms;   // The exact squared norm of each centroid
+    private final double[] norms;        // The norm of each centroid
+    private final long[] sums;           // The sum of the values of each centroid
+    private volatile int[] byPixel;      // The values pixel-major (length x k), for sparse items (made when first needed)
+
+    public Centroids(int k, int length, int shift) {
+        if (shift < 0 || shift > MAX_SHIFT) {
+            throw new IllegalArgumentException("Shift: " + shift);
+        }
+        this.shift = shift;
+        this.length = length;
+        this.block = Kernels.block(255, 255 << shift);
+        this.differenceBlock = Kernels.block(255 << shift, 1);
+        this.values = new int[k][length];
+        this.squaredNorms = new long[k];
+        this.norms = new double[k];
+        this.sums = new long[k];
+    }
+
+    public static Centroids of(Image[] images) {
+        // Centroids holding the (whole) pixel values of the given images
+        Centroids centroids = new Centroids(images.length, Image.rows(images) * Image.columns(images), 0);
+        for (int c = 0; c < images.length; c++) {
+            centroids.set(c, images[c].copy());
+        }
+        return centroids;
+    }
+
+    public static Centroids of(double[][] pixels, int shift) {
+        // Centroids holding the given pixel values, rounded to shift fractional bits
+        Centroids centroids = new Centroids(pixels.length, pixels.length == 0 ? 0 : pixels[0].length, shift);
+        for (int c = 0; c < pixels.length; c++) {
+            centroids.set(c, pixels[c]);
+        }
+        return centroids;
+    }
+
+    public int k() {
+        return this.values.length;
+    }
+
+    public int length() {
+        return this.length;
+    }
+
+    public int shift() {
+        return this.shift;
+    }
+
+    public int[] values(int centroid) {
+        return this.values[centroid];
+    }
+
+    public double[] pixels(int centroid) {
+        // The (exact) pixel values of a centroid, as the kernels see them
+        double[] pixels = new double[this.length];
+        double scale = 1 << this.shift;
+        for (int i = 0; i < this.length; i++) {
+            pixels[i] = this.values[centroid][i] / scale;
+        }
+        return pixels;
+    }
+
+    public long squaredNorm(int centroid) {
+        return this.squaredNorms[centroid];
+    }
+
+    public double norm(int centroid) {
+        return this.norms[centroid];
+    }
+
+    private void update(int centroid) {
+        long sum = 0, squaredSum = 0;
+        for (int value : this.values[centroid]) {
+            sum += value;
+            squaredSum += (long) value * value;
+        }
+        this.sums[centroid] = sum;
+        this.squaredNorms[centroid] = squaredSum;
+        this.norms[centroid] = Math.sqrt(squaredSum);
+        this.byPixel = null;
+    }
+
+    public void set(int centroid, byte[] pixels) {
+        int[] values = this.values[centroid];
+        for (int i = 0; i < this.length; i++) {
+            values[i] = (pixels[i] & 0xFF) << this.shift;
+        }
+        update(centroid);
+    }
+
+    public void set(int centroid, double[] pixels) {
+        // Rounds the given pixel values (clamped to [0, 255]) to fixed point
+        int[] values = this.values[centroid];
+        double scale = 1 << this.shift;
+        for (int i = 0; i < this.length; i++) {
+            values[i] = (int) Math.round(Math.min(Math.max(pixels[i], 0.0), 255.0) * scale);
+        }
+        update(centroid);
+    }
+
+    public long dotProduct(int[] item, int centroid) {
+        // The exact dot product of an item's (widened) pixels with a centroid, in units of 2^-shift
+        return Kernels.dotProduct(item, this.values[centroid], this.block);
+    }
+
+    public long manhattan(int[] item, int centroid) {
+        // The exact L1 distance between an item's (widened) pixels and a centroid, in units of 2^-shift
+        return Kernels.manhattan(item, this.shift, this.values[centroid], this.differenceBlock);
+    }
+
+    public double cosineDistance(int[] item, double itemNorm, int centroid) {
+        // Scaling a centroid does not change the cosine, so no shift is needed here
+        return 1 - (dotProduct(item, centroid) / (itemNorm * this.norms[centroid]));
+    }
+
+    public void dotProducts(SparseItems items, int item, int from, int to, long[] products) {
+        // products[c] = dotProduct(items, item, c) for centroids [from, to): each nonzero
+        // pixel adds its row of the pixel-major values to all the sums at once, a loop
+        // along the centroids that vectorizes (int sums of up to block products).  Four
+        // pixels are added per pass, so the sums are loaded and stored a quarter as often
+        int[] sums = partials(to - from), byPixel = byPixel(), indices = items.indices();
+        byte[] values = items.values();
+        int k = k(), count = to - from, run = 0;
+        for (int c = from; c < to; c++) {
+            products[c] = 0;
+        }
+        int p = items.start(item), end = items.end(item);
+        for (; this.block >= 4 && p + 4 <= end; p += 4) {
+            int v0 = values[p] & 0xFF, v1 = values[p + 1] & 0xFF, v2 = values[p + 2] & 0xFF, v3 = values[p + 3] & 0xFF;
+            int r0 = indices[p] * k + from, r1 = indices[p + 1] * k + from, r2 = indices[p + 2] * k + from, r3 = indices[p + 3] * k + from;
+            for (int c = 0; c < count; c++) {
+                sums[c] += v0 * byPixel[r0 + c] + v1 * byPixel[r1 + c] + v2 * byPixel[r2 + c] + v3 * byPixel[r3 + c];
+            }
+            if ((run += 4) > this.block - 4) {
+                run = flush(sums, products, from, to);
+            }
+        }
+        for (; p < end; p++) {
+            int value = values[p] & 0xFF, row = indices[p] * k + from;
+            if (run == this.block) run = flush(sums, products, from, to);
+            for (int c = 0; c < count; c++) {
+                sums[c] += value * byPixel[row + c];
+            }
+            run++;
+        }
+        flush(sums, products, from, to);
+    }
+
+    public void manhattans(SparseItems items, int item, int from, int to, long[] products) {
+        // products[c] = manhattan(items, item, c) for centroids [from, to), in the same
+        // way: a zero pixel contributes the centroid's value, so the sums start from the
+        // centroids' sums and each nonzero pixel corrects its own term
+        int[] sums = partials(to - from), byPixel = byPixel(), indices = items.indices();
+        byte[] values = items.values();
+        int k = k(), count = to - from, run = 0, shift = this.shift;
+        for (int c = from; c < to; c++) {
+            products[c] = this.sums[c];
+        }
+        int p = items.start(item), end = items.end(item);
+        for (; this.differenceBlock >= 4 && p + 4 <= end; p += 4) {
+            int v0 = (values[p] & 0xFF) << shift, v1 = (values[p + 1] & 0xFF) << shift, v2 = (values[p + 2] & 0xFF) << shift, v3 = (values[p + 3] & 0xFF) << shift;
+            int r0 = indices[p] * k + from, r1 = indices[p + 1] * k + from, r2 = indices[p + 2] * k + from, r3 = indices[p + 3] * k + from;
+            for (int c = 0; c < count; c++) {
+                int c0 = byPixel[r0 + c], c1 = byPixel[r1 + c], c2 = byPixel[r2 + c], c3 = byPixel[r3 + c];
+                sums[c] += Math.abs(v0 - c0) - c0 + Math.abs(v1 - c1) - c1 + Math.abs(v2 - c2) - c2 + Math.abs(v3 - c3) - c3;
+            }
+            if ((run += 4) > this.differenceBlock - 4) {
+                run = flush(sums, products, from, to);
+            }
+        }
+        for (; p < end; p++) {
+            int value = (values[p] & 0xFF) << shift, row = indices[p] * k + from;
+            if (run == this.differenceBlock) run = flush(sums, products, from, to);
+            for (int c = 0; c < count; c++) {
+                int centroid = byPixel[row + c];
+                sums[c] += Math.abs(value - centroid) - centroid;
+            }
+            run++;
+        }
+        flush(sums, products, from, to);
+    }
+
+    private static int[] partials(int count) {
+        int[] sums = partials.get();
+        if (sums.length < count) partials.set(sums = new int[count]);
+        return sums;
+    }
+
+    private static long[] products(int k) {
+        long[] products = Centroids.products.get();
+        if (products.length < k) Centroids.products.set(products = new long[k]);
+        return products;
+    }
+
+    private static int flush(int[] sums, long[] products, int from, int to) {
+        // Adds the int sums into products and clears them (returns the new run length, 0)
+        for (int c = from; c < to; c++) {
+            products[c] += sums[c - from];
+            sums[c - from] = 0;
+        }
+        return 0;
+    }
+
+    private int[] byPixel() {
+        int[] result = this.byPixel;
+        if (result == null) {
+            int k = k();
+            int[] byPixel = new int[this.length * k];
+            for (int c = 0; c < k; c++) {
+                for (int i = 0; i < this.length; i++) {
+                    byPixel[i * k + c] = this.values[c][i];
+                }
+            }
+            this.byPixel = result = byPixel;
+        }
+        return result;
+    }
+
+    // -- Blocked Engine -----------------------------------------------------------------
+    //
+    // Computing every item-centroid distance one pair at a time streams all K
+    // centroids through the cache once per item, so with many centroids the work is
+    // bound by memory bandwidth.  Instead, a tile of items is widened once and then
+    // compared with one tile of centroids at a time, so each centroid is loaded once
+    // per ITEM_TILE items and the tiles being multiplied stay in L1/L2.  This is a
+    // blocked dense product (items x centroids^T); the centroids stay row-major since
+    // the kernel vectorizes along the pixels.  The exact dot products of a tile are
+    // normalized into cosine distances once the tile is done.
+
+    private int[][] load(Dataset items, int[] indices, int from, int to) {
+        // Widens items [from, to) (of indices, if not null) into this thread's tile buffers
+        int[][] tile = tiles.get();
+        if (tile.length == 0 || tile[0].length != this.length) {
+            tile = new int[ITEM_TILE][this.length];
+            tiles.set(tile);
+        }
+        byte[] pixels = scratch.get();
+        if (pixels.length != this.length) {
+            pixels = new byte[this.length];
+            scratch.set(pixels);
+        }
+        for (int i = from; i < to; i++) {
+            Kernels.widen(items.read(indices == null ? i : indices[i], pixels), tile[i - from]);
+        }
+        return tile;
+    }
+
+    public void cosineDistances(Dataset items, double[] itemNorms, double[][] distances) {
+        // distances[i][c] = the cosine distance between item i and centroid c
+        int k = k();
+        int tileCount = (items.size() + ITEM_TILE - 1) / ITEM_TILE;
+        IntStream.range(0, tileCount).parallel().forEach(tile -> {
+            int from = tile * ITEM_TILE, to = Math.min(items.size(), from + ITEM_TILE);
+            int[][] tileItems = load(items, null, from, to);
+            for (int c0 = 0; c0 < k; c0 += CENTROID_TILE) {
+                int c1 = Math.min(k, c0 + CENTROID_TILE);
+                for (int i = from; i < to; i++) {
+                    int[] item = tileItems[i - from];
+                    double[] row = distances[i];
+                    for (int c = c0; c < c1; c++) {
+                        row[c] = Kernels.dotProduct(item, this.values[c], this.block);
+                    }
+                }
+            }
+            for (int i = from; i < to; i++) {
+                double[] row = distances[i];
+                for (int c = 0; c < k; c++) {
+                    row[c] = 1 - (row[c] / (itemNorms[i] * this.norms[c]));
+                }
+            }
+        });
+    }
+
+    public void assign(DistanceKernel kernel, Dataset items, int[] nearest, double[] distances) {
+        // nearest[i] = the centroid closest to item i and distances[i] = its distance.
+        // The same blocked product as cosineDistances, but each distance is compared
+        // with the item's best so far as soon as it is computed, so no N x K matrix is
+        // stored and nothing is allocated per item.  Ties go to the lowest centroid.
+        assign(kernel, items, null, nearest, distances);
+    }
+
+    public void assign(DistanceKernel kernel, Dataset items, int[] indices, int[] nearest, double[] distances) {
+        // The same for the items listed in indices (all items if null): nearest[j] and
+        // distances[j] are the nearest centroid of item indices[j] and its distance
+        assign(kernel, items, null, indices, nearest, distances);
+    }
+
+    public void assign(DistanceKernel kernel, Dataset items, SparseItems sparse, int[] indices, int[] nearest, double[] distances) {
+        // The same, reading the items' nonzero pixels from sparse if it is not null
+        if (sparse != null) {
+            assignSparse(kernel, items, sparse, indices, nearest, distances);
+            return;
+        }
+        int k = k();
+        int count = indices == null ? items.size() : indices.length;
+        long[] itemSquaredNorms = items.squaredNorms();
+        double[] itemNorms = items.norms();
+        int tileCount = (count + ITEM_TILE - 1) / ITEM_TILE;
+        IntStream.range(0, tileCount).parallel().forEach(tile -> {
+            int from = tile * ITEM_TILE, to = Math.min(count, from + ITEM_TILE);
+            int[][] tileItems = load(items, indices, from, to);
+            for (int c0 = 0; c0 < k; c0 += CENTROID_TILE) {
+                int c1 = Math.min(k, c0 + CENTROID_TILE);
+                for (int j = from; j < to; j++) {
+                    int i = indices == null ? j : indices[j];
+                    int best = c0 == 0 ? -1 : nearest[j];
+                    double bestDistance = c0 == 0 ? 0.0 : distances[j];
+                    for (int c = c0; c < c1; c++) {
+                        double distance = kernel.distance(tileItems[j - from], itemSquaredNorms[i], itemNorms[i], this, c);
+                        if (best < 0 || Double.compare(distance, bestDistance) < 0) {
+                            best = c;
+                            bestDistance = distance;
+                        }
+                    }
+                    nearest[j] = best;
+                    distances[j] = bestDistance;
+                }
+            }
+        });
+    }
+
+    private void assignSparse(DistanceKernel kernel, Dataset items, SparseItems sparse, int[] indices, int[] nearest, double[] distances) {
+        // Each item's products with a tile of centroids are computed together (see
+        // dotProducts), and the tile's rows of pixel-major values stay in cache for
+        // the tile of items
+        int k = k();
+        int count = indices == null ? items.size() : indices.length;
+        long[] itemSquaredNorms = items.squaredNorms();
+        double[] itemNorms = items.norms();
+        int tileCount = (count + ITEM_TILE - 1) / ITEM_TILE;
+        IntStream.range(0, tileCount).parallel().forEach(tile -> {
+            int from = tile * ITEM_TILE, to = Math.min(count, from + ITEM_TILE);
+            long[] products = products(k);
+            for (int c0 = 0; c0 < k; c0 += SPARSE_TILE) {
+                int c1 = Math.min(k, c0 + SPARSE_TILE);
+                for (int j = from; j < to; j++) {
+                    int i = indices == null ? j : indices[j];
+                    kernel.products(sparse, i, this, c0, c1, products);
+                    int best = c0 == 0 ? -1 : nearest[j];
+                    double bestDistance = c0 == 0 ? 0.0 : distances[j];
+                    for (int c = c0; c < c1; c++) {
+                        double distance = kernel.distance(products[c], itemSquaredNorms[i], itemNorms[i], this, c);
+                        if (best < 0 || Double.compare(distance, bestDistance) < 0) {
+                            best = c;
+                            bestDistance = distance;
+                        }
+                    }
+                    nearest[j] = best;
+                    distances[j] = bestDistance;
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,83 @@
+// Owen Gregson, Peter Zhao
+// Algorithms
+// Final Project
+// May 18, 2024
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+public class ClusterFile {
+
+    // A clustering result, stored under a common prefix as ordinary IDX files:
+    //
+    //   <prefix>-images             Every clustered item, sorted by cluster (IDX images)
+    //   <prefix>-labels             The items' original labels, in the same order
+    //   <prefix>-index              K+1 offsets; cluster c is records [index[c], index[c+1])
+    //   <prefix>-assignments        The cluster of each item (or -1), in original order
+    //   <prefix>-centroids-images   The centroids (IDX images)
+    //   <prefix>-centroids-labels   The labels given to the centroids
+    //
+    // The index and assignments are IDX vectors of 32-bit integers, so any tool that
+    // reads images (Select, View) can read the items, a cluster (see range) or the
+    // centroids.
+
+    public static final int MAGIC = 0x0C01;   // IDX: signed 32-bit integers, one dimension
+
+    // -- Writer ---------------------------------------------------------------------
+
+    public static void write(String prefix, Dataset items, int[] assignments, Image[] centroids) throws IOException {
+        // Items with a negative assignment (in no cluster) are left out of the images
+        Clusters clusters = Clusters.of(assignments, centroids.length);
+        int[] index = clusters.offsets();
+        int[] order = clusters.order();
+
+        try (IdxWriter writer = new IdxWriter(prefix + "-images", prefix + "-labels")) {
+            for (int item : order) {
+                writer.write(items.image(item));
+            }
+            writer.commit();
+        }
+        writeInts(prefix + "-index", index);
+        writeInts(prefix + "-assignments", assignments);
+        Image.write(centroids, prefix + "-centroids-images", prefix + "-centroids-labels");
+    }
+
+    public static void writeInts(String filename, int[] values) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8).putInt(MAGIC).putInt(values.length).flip();
+        ByteBuffer data = ByteBuffer.allocate(4 * values.length);
+        data.asIntBuffer().put(values);
+        IdxWriter.writeFile(filename, header, data);
+    }
+
+    // -- Reader ---------------------------------------------------------------------
+
+    public static int[] readInts(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ByteBuffer input = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (input.limit() < 8 || input.getInt(0) != MAGIC) {
+                throw new Image.FileFormatException("Bad magic (integers): " + (input.limit() < 4 ? -1 : input.getInt(0)));
+            }
+            int count = input.getInt(4);
+            if (count < 0 || (input.limit() - 8) / 4 < count) {
+                throw new Image.FileFormatException("Invalid integer count: " + count);
+            }
+            int[] result = new int[count];
+            input.position(8).asIntBuffer().get(result);
+            return result;
+        }
+    }
+
+    public static int[] range(String imageFilename, int cluster) throws IOException {
+        // The records [from, to) of a cluster (0-based) within a sorted image file,
+        // using the index file that accompanies it (<prefix>-images => <prefix>-index)
+        String prefix = imageFilename.endsWith("-images") ? imageFilename.substring(0, imageFilename.length() - 7) : imageFilename;
+        int[] index = readInts(prefix + "-index");
+        if (cluster < 0 || cluster >= index.length - 1) {
+            throw new IllegalArgumentException("No cluster " + (cluster + 1) + " (there are " + (index.length - 1) + ")");
+        }
+        return new int[] { index[cluster], index[cluster + 1] };
+    }
+}
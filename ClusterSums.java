@@ -0,0 +1,103 @@
+// Owen Gregson, Peter Zhao
+// Algorithms
+// Final Project
+// May 18, 2024
+
+import java.util.stream.IntStream;
+
+public class ClusterSums {
+
+    // The exact pixel sums and sizes of the clusters of a K-Means run, kept up to
+    // date as items move between clusters.  Only the items that moved are read, so
+    // once assignments settle the cost of an iteration's centroid update depends on
+    // the number of moves rather than on the number of items, and clusters that
+    // neither gained nor lost an item are known to have the same mean as before.
+
+    private final Dataset items;
+    private final SparseItems sparse;    // The items' nonzero pixels, or null to read all of them
+    private final long[][] sums;         // The sum of each pixel over the members of each cluster
+    private final int[] counts;          // The number of members of each cluster
+    private final boolean[] changed;     // Whether each cluster gained or lost members in the last move
+
+    public ClusterSums(Dataset items, SparseItems sparse, int k, int[] labels) {
+        // Sums of the clusters given by labels (which must all be in [0, k))
+        this.items = items;
+        this.sparse = sparse;
+        this.sums = new long[k][items.length()];
+        this.counts = new int[k];
+        this.changed = new boolean[k];
+        int[] all = IntStream.range(0, items.size()).toArray();
+        int[][] members = group(all, labels, k);
+        IntStream.range(0, k).parallel().forEach(c -> add(members[c], this.sums[c], 1));
+        for (int label : labels) {
+            this.counts[label]++;
+        }
+    }
+
+    public int count(int cluster) {
+        return this.counts[cluster];
+    }
+
+    public boolean changed(int cluster) {
+        return this.changed[cluster];
+    }
+
+    public double[] mean(int cluster) {
+        // The mean of the members of a cluster (which must not be empty)
+        long[] sums = this.sums[cluster];
+        double[] mean = new double[sums.length];
+        for (int i = 0; i < sums.length; i++) {
+            mean[i] = sums[i] / (double) this.counts[cluster];
+        }
+        return mean;
+    }
+
+    public void move(int[] moved, int[] from, int[] to) {
+        // Moves items moved[j] from cluster from[moved[j]] to cluster to[moved[j]]
+        int k = this.counts.length;
+        int[][] leaving = group(moved, from, k), joining = group(moved, to, k);
+        IntStream.range(0, k).parallel().forEach(c -> {
+            add(leaving[c], this.sums[c], -1);
+            add(joining[c], this.sums[c], 1);
+            this.counts[c] += joining[c].length - leaving[c].length;
+            this.changed[c] = leaving[c].length > 0 || joining[c].length > 0;
+        });
+    }
+
+    private void add(int[] members, long[] sums, int sign) {
+        if (this.sparse != null) {
+            // A scatter-add of each member's nonzero pixels
+            int[] indices = this.sparse.indices();
+            byte[] values = this.sparse.values();
+            for (int item : members) {
+                for (int p = this.sparse.start(item), end = this.sparse.end(item); p < end; p++) {
+                    sums[indices[p]] += sign * (values[p] & 0xFF);
+                }
+            }
+            return;
+        }
+        for (int item : members) {
+            byte[] pixels = Final.read(this.items, item);
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] += sign * (pixels[i] & 0xFF);
+            }
+        }
+    }
+
+    private static int[][] group(int[] indices, int[] labels, int k) {
+        // The indices split by label, each group in the order given
+        int[] counts = new int[k];
+        for (int i : indices) {
+            counts[labels[i]]++;
+        }
+        int[][] groups = new int[k][];
+        for (int c = 0; c < k; c++) {
+            groups[c] = new int[counts[c]];
+        }
+        int[] next = new int[k];
+        for (int i : indices) {
+            groups[labels[i]][next[labels[i]]++] = i;
+        }
+        return groups;
+    }
+}
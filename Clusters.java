@@ -0,0 +1,84 @@
+// Owen Gregson, Peter Zhao
+// Algorithms
+// Final Project
+// May 18, 2024
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+public class Clusters {
+
+    // The members of each cluster, derived from the items' labels: the item indices
+    // sorted by cluster in one array, with the offset at which each cluster starts
+    // (the layout of a sparse matrix's rows, and of ClusterFile's index).  It is
+    // built by a parallel counting sort: each chunk of items counts its labels, the
+    // counts give every chunk its own place in each cluster, and then each chunk
+    // writes its items there.  Nothing is allocated per item, sizes are O(1) and
+    // each cluster's members are contiguous and in increasing order.
+
+    private static final int CHUNK = 1 << 14;   // Items counted and placed by one task
+
+    private final int[] offsets;   // Cluster c is members [offsets[c], offsets[c + 1])
+    private final int[] members;   // Item indices, sorted by cluster
+
+    private Clusters(int[] offsets, int[] members) {
+        this.offsets = offsets;
+        this.members = members;
+    }
+
+    public static Clusters of(int[] labels, int k) {
+        // The clusters of the given labels, which are in [0, k) or negative for items in no cluster
+        int chunks = (labels.length + CHUNK - 1) / CHUNK;
+        int[][] counts = new int[chunks][k];
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            for (int i = chunk * CHUNK, end = Math.min(labels.length, i + CHUNK); i < end; i++) {
+                if (labels[i] >= 0) counts[chunk][labels[i]]++;
+            }
+        });
+        // Turn the counts into the position where each chunk's items of each cluster go
+        int[] offsets = new int[k + 1];
+        int position = 0;
+        for (int c = 0; c < k; c++) {
+            offsets[c] = position;
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                int count = counts[chunk][c];
+                counts[chunk][c] = position;
+                position += count;
+            }
+        }
+        offsets[k] = position;
+        int[] members = new int[position];
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            int[] next = counts[chunk];
+            for (int i = chunk * CHUNK, end = Math.min(labels.length, i + CHUNK); i < end; i++) {
+                if (labels[i] >= 0) members[next[labels[i]]++] = i;
+            }
+        });
+        return new Clusters(offsets, members);
+    }
+
+    public int k() {
+        return this.offsets.length - 1;
+    }
+
+    public int size(int cluster) {
+        return this.offsets[cluster + 1] - this.offsets[cluster];
+    }
+
+    public int[] offsets() {
+        return this.offsets;
+    }
+
+    public int[] order() {
+        // Every clustered item, sorted by cluster
+        return this.members;
+    }
+
+    public int[] members(int cluster) {
+        return Arrays.copyOfRange(this.members, this.offsets[cluster], this.offsets[cluster + 1]);
+    }
+
+    public IntStream stream(int cluster) {
+        return Arrays.stream(this.members, this.offsets[cluster], this.offsets[cluster + 1]);
+    }
+}
@@ -0,0 +1,267 @@
+// Owen Gregson, Peter Zhao
+// Algorithms
+// Final Project
+// May 18, 2024
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+public class Dataset {
+
+    private final int size;            // Number of images in this data set
+    private final int rows;            // Number of rows in each image
+    private final int columns;         // Number of columns in each image
+    private final int length;          // Number of pixels in each image (rows * columns)
+    private final int perSegment;      // Number of images held by each segment
+    private final ByteBuffer[] segments; // All pixels (grayscale), image after image, row-major
+    private final int[] labels;        // The label of each image
+    private final int[] ids;           // The (sequential) identifier of each image
+    private volatile long[] squaredNorms; // The squared Euclidean norm of each image (computed when first needed)
+    private volatile double[] norms;   // The Euclidean norm of each image (computed when first needed)
+    private volatile SparseItems sparse; // The nonzero pixels of each image (computed when first needed)
+
+    // Pixels live in one or more buffers (heap, memory-mapped or off-heap), each
+    // holding perSegment whole images, so data sets larger than 2GB can be stored.
+    // Buffers are only accessed with absolute get/put, so any number of threads
+    // may read a data set at the same time.
+
+    public Dataset(ByteBuffer[] segments, int perSegment, int[] labels, int[] ids, int rows, int columns) {
+        if (rows <= 0) {
+            throw new IllegalArgumentException("Rows: " + rows);
+        }
+        if (columns <= 0) {
+            throw new IllegalArgumentException("Columns: " + columns);
+        }
+        if (labels.length != ids.length || perSegment <= 0) {
+            throw new IllegalArgumentException("Size mismatch: " + labels.length + " labels, " + ids.length + " ids");
+        }
+        long capacity = 0;
+        for (ByteBuffer segment : segments) {
+            capacity += segment.limit() / (rows * columns);
+        }
+        if (capacity < labels.length) {
+            throw new IllegalArgumentException("Size mismatch: " + labels.length + " images, room for " + capacity);
+        }
+
+        this.size = labels.length;
+        this.rows = rows;
+        this.columns = columns;
+        this.length = rows * columns;
+        this.perSegment = perSegment;
+        this.segments = segments;
+        this.labels = labels;
+        this.ids = ids;
+    }
+
+    public Dataset(ByteBuffer[] segments, int perSegment, int size, int rows, int columns) {
+        this(segments, perSegment, new int[size], new int[size], rows, columns);
+        Arrays.fill(this.labels, Image.UNKNOWN);
+        int first = Image.reserveIds(size);
+        for (int i = 0; i < size; i++) {
+            this.ids[i] = first + i;
+        }
+    }
+
+    public Dataset(byte[] pixels, int[] labels, int[] ids, int rows, int columns) {
+        this(new ByteBuffer[] { ByteBuffer.wrap(pixels) }, Math.max(1, labels.length), labels, ids, rows, columns);
+    }
+
+    public Dataset(int size, int rows, int columns) {
+        this(new ByteBuffer[] { ByteBuffer.wrap(new byte[Math.multiplyExact(size, Math.multiplyExact(rows, columns))]) },
+             Math.max(1, size), size, rows, columns);
+    }
+
+    // -- Off-heap Storage ---------------------------------------------------------------
+    //
+    // Pixels of very large data sets can be kept outside the Java heap, so that the
+    // heap only holds labels, centroids and per-item assignment arrays and the
+    // garbage collector never has to scan or copy image data.  Direct buffers are
+    // bounded by -XX:MaxDirectMemorySize (by default the maximum heap size); a
+    // file-backed data set is bounded only by disk space and is paged in and out
+    // by the operating system.
+
+    static int perSegment(int size, int length) {
+        // Number of whole images that fit in a single buffer (at most 2GB)
+        return Math.max(1, Math.min(size, Integer.MAX_VALUE / length));
+    }
+
+    public static Dataset allocateDirect(int[] labels, int[] ids, int rows, int columns) {
+        // A data set whose pixels (initially all WHITE) are held in direct, off-heap memory
+        int length = Math.multiplyExact(rows, columns);
+        int perSegment = perSegment(labels.length, length);
+        ByteBuffer[] segments = new ByteBuffer[(labels.length + perSegment - 1) / perSegment];
+        for (int s = 0; s < segments.length; s++) {
+            segments[s] = ByteBuffer.allocateDirect(Math.min(perSegment, labels.length - s * perSegment) * length);
+        }
+        return new Dataset(segments, perSegment, labels, ids, rows, columns);
+    }
+
+    public static Dataset allocateMapped(String filename, int[] labels, int[] ids, int rows, int columns) throws IOException {
+        // A data set whose pixels (initially all WHITE) are held in a memory-mapped scratch
+        // file; the file is replaced if it exists and is deleted when the JVM exits
+        int length = Math.multiplyExact(rows, columns);
+        int perSegment = perSegment(labels.length, length);
+        ByteBuffer[] segments = new ByteBuffer[(labels.length + perSegment - 1) / perSegment];
+        File file = new File(filename);
+        file.deleteOnExit();
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            for (int s = 0; s < segments.length; s++) {
+                int images = Math.min(perSegment, labels.length - s * perSegment);
+                segments[s] = channel.map(FileChannel.MapMode.READ_WRITE, (long) s * perSegment * length, (long) images * length);
+            }
+        }
+        return new Dataset(segments, perSegment, labels, ids, rows, columns);
+    }
+
+    public boolean isDirect() {
+        // Whether the pixels of this data set are held outside the Java heap
+        return this.segments.length > 0 && this.segments[0].isDirect();
+    }
+
+    public static Dataset of(Image[] images) {
+        // Copies the pixels, labels and identifiers of the images into a new data set
+        int rows = Image.rows(images);
+        int columns = Image.columns(images);
+        int length = rows * columns;
+        byte[] pixels = new byte[images.length * length];
+        int[] labels = new int[images.length];
+        int[] ids = new int[images.length];
+        for (int i = 0; i < images.length; i++) {
+            images[i].copy(pixels, i * length);
+            labels[i] = images[i].label();
+            ids[i] = images[i].id();
+        }
+        return new Dataset(pixels, labels, ids, rows, columns);
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public int rows() {
+        return this.rows;
+    }
+
+    public int columns() {
+        return this.columns;
+    }
+
+    public int length() {
+        return this.length;
+    }
+
+    public int[] labels() {
+        return this.labels;
+    }
+
+    public int[] ids() {
+        return this.ids;
+    }
+
+    public ByteBuffer[] buffers() {
+        // Read-only views of the pixel segments, in order, covering exactly size() images
+        ByteBuffer[] result = new ByteBuffer[this.segments.length];
+        for (int s = 0; s < result.length; s++) {
+            int images = Math.min(this.perSegment, this.size - s * this.perSegment);
+            result[s] = this.segments[s].asReadOnlyBuffer().position(0).limit(images * this.length);
+        }
+        return result;
+    }
+
+    private ByteBuffer segment(int index) {
+        return this.segments[index / this.perSegment];
+    }
+
+    private int position(int index) {
+        // Index of the first pixel of the given image within its segment
+        return (index % this.perSegment) * this.length;
+    }
+
+    public int get(int index, int pixel) {
+        return segment(index).get(position(index) + pixel) & 0xFF;
+    }
+
+    public byte[] read(int index, byte[] destination) {
+        // Copies the pixels of the given image into destination and returns it
+        segment(index).get(position(index), destination, 0, this.length);
+        return destination;
+    }
+
+    public void write(int index, byte[] source) {
+        segment(index).put(position(index), source, 0, this.length);
+        this.squaredNorms = null;
+        this.norms = null;
+        this.sparse = null;
+    }
+
+    public static double norm(byte[] pixels) {
+        // The Euclidean norm of an image's pixels (the squared norm is summed exactly)
+        return Math.sqrt(Kernels.squaredNorm(pixels));
+    }
+
+    public long[] squaredNorms() {
+        // The exact squared norm of every image, computed (in parallel) on first use and
+        // kept until the pixels are next written; callers must not modify the array
+        long[] result = this.squaredNorms;
+        if (result == null) {
+            long[] squaredNorms = new long[this.size];
+            IntStream.range(0, this.size).parallel().forEach(i -> squaredNorms[i] = Kernels.squaredNorm(read(i, new byte[this.length])));
+            this.squaredNorms = result = squaredNorms;
+        }
+        return result;
+    }
+
+    public double[] norms() {
+        // The norm of every image (see squaredNorms)
+        double[] result = this.norms;
+        if (result == null) {
+            this.norms = result = Arrays.stream(squaredNorms()).mapToDouble(Math::sqrt).toArray();
+        }
+        return result;
+    }
+
+    public double norm(int index) {
+        return norms()[index];
+    }
+
+    public SparseItems sparse() {
+        // The images' nonzero pixels (see SparseItems), kept like squaredNorms
+        SparseItems result = this.sparse;
+        if (result == null) {
+            this.sparse = result = SparseItems.of(this);
+        }
+        return result;
+    }
+
+    public int label(int index) {
+        return this.labels[index];
+    }
+
+    public void label(int index, int label) {
+        this.labels[index] = label;
+    }
+
+    public int id(int index) {
+        return this.ids[index];
+    }
+
+    public Image image(int index) {
+        // A view of the given image; its pixels are shared with this data set
+        return new Image(segment(index), position(index), this.rows, this.columns, this.labels[index], this.ids[index]);
+    }
+
+    public Image[] images() {
+        Image[] result = new Image[this.size];
+        for (int i = 0; i < this.size; i++) {
+            result[i] = image(i);
+        }
+        return result;
+    }
+}
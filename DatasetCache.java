@@ -0,0 +1,77 @@
+// Owen Gregson, Peter Zhao
+// Algorithms
+// Final Project
+// May 18, 2024
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class DatasetCache {
+
+    // A content-addressed store of derived data sets (e.g. preprocessed images).
+    // An entry's key is the SHA-256 of the input files' contents together with a
+    // description of the processing applied to them (parameters and a version
+    // number), so changing the inputs, the parameters or the pipeline version
+    // simply selects a different entry.  Entries are ordinary IDX files
+    // (<key>-images and <key>-labels), written atomically and memory-mapped back.
+
+    private final Path directory;
+
+    public DatasetCache(String directory) {
+        this.directory = Paths.get(directory);
+    }
+
+    public String key(String imageFilename, String labelFilename, String configuration) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);   // Every Java platform provides SHA-256
+        }
+        digest.update(configuration.getBytes(StandardCharsets.UTF_8));
+        update(digest, imageFilename);
+        if (labelFilename.length() > 0) update(digest, labelFilename);
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    private static void update(MessageDigest digest, String filename) throws IOException {
+        // Hashes the file's length and contents, mapping it a segment at a time
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            long size = channel.size();
+            digest.update(ByteBuffer.allocate(8).putLong(size).flip());
+            for (long position = 0; position < size; position += Integer.MAX_VALUE) {
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Integer.MAX_VALUE, size - position)));
+            }
+        }
+    }
+
+    private String filename(String key, String suffix) {
+        return this.directory.resolve(key + suffix).toString();
+    }
+
+    public Dataset get(String key) throws IOException {
+        // The (memory-mapped) entry for key, or null if there is none
+        if (!Files.exists(Paths.get(filename(key, "-images"))) || !Files.exists(Paths.get(filename(key, "-labels")))) {
+            return null;
+        }
+        return Image.readDataset(filename(key, "-images"), filename(key, "-labels"));
+    }
+
+    public void put(String key, Dataset dataset) throws IOException {
+        Files.createDirectories(this.directory);
+        Image.write(dataset, filename(key, "-images"), filename(key, "-labels"));
+    }
+}
@@ -0,0 +1,262 @@
+// Owen Gregson, Peter Zhao
+// Algorithms
+// Final Project
+// May 18, 2024
+
+import java.util.Arrays;
+
+public interface DistanceKernel {
+
+    // A distance measure between images, used by every step of K-Means: seeding,
+    // assignment and the centroid update.  Each measure has a fast path, working on
+    // an item's widened pixels against the fixed-point centroids of a Centroids set
+    // (see Kernels), and a plain scalar version of the same distance, used as a
+    // reference.  The fast paths are exact (or, for cosine, compute the same
+    // floating-point value as the reference), so both give the same assignments.
+    //
+    // Pruning (see Bounds) needs the triangle inequality, so each measure also gives
+    // a true metric that orders pairs exactly as the distance does: the chord between
+    // the normalized vectors for cosine, the square root for squared Euclidean, and
+    // L1 itself.
+
+    DistanceKernel COSINE = new Cosine();
+    DistanceKernel EUCLIDEAN = new SquaredEuclidean();
+    DistanceKernel MANHATTAN = new Manhattan();
+
+    String name();
+
+    double distance(int[] item, long itemSquaredNorm, double itemNorm, Centroids centroids, int centroid);
+
+    // The same distances for sparse items: the exact integer each distance is computed
+    // from (a dot product, or the L1 distance itself) for a range of centroids, and the
+    // distance from it
+
+    void products(SparseItems items, int item, Centroids centroids, int from, int to, long[] products);
+
+    double distance(long product, long itemSquaredNorm, double itemNorm, Centroids centroids, int centroid);
+
+    double distance(byte[] item, double[] centroid);
+
+    double distance(float[] point, double pointNorm, double[] centroid, double centroidNorm);   // Projected items (see Projection)
+
+    double metric(double distance);             // The metric corresponding to a distance
+
+    double metric(double[] a, double[] b);      // The metric between two centroids
+
+    default double[] centroid(Dataset items, int[] members) {
+        // The point minimizing the total distance to the members (for these measures, the mean)
+        return Final.computeCentroid(items, members);
+    }
+
+    default double[] centroid(float[][] points, int[] members) {
+        // The same for projected items
+        double[] mean = new double[points[members[0]].length];
+        for (int member : members) {
+            for (int i = 0; i < mean.length; i++) {
+                mean[i] += points[member][i];
+            }
+        }
+        for (int i = 0; i < mean.length; i++) {
+            mean[i] /= members.length;
+        }
+        return mean;
+    }
+
+    default boolean centroidIsMean() {
+        // Whether centroid() is the mean of the members (so it follows from their pixel sums)
+        return true;
+    }
+
+    default double sparseMaxDensity() {
+        // The largest fraction of nonzero pixels at which the sparse products are faster than the dense kernel
+        return 0.25;
+    }
+
+    static DistanceKernel forName(String name) {
+        switch (name) {
+            case "cosine": return COSINE;
+            case "euclidean": return EUCLIDEAN;
+            case "l1":
+            case "manhattan": return MANHATTAN;
+            default: throw new IllegalArgumentException("Unknown distance: " + name + " (expected cosine, euclidean or l1)");
+        }
+    }
+
+    // -- Cosine -----------------------------------------------------------------------
+
+    final class Cosine implements DistanceKernel {
+        // 1 - (x . c) / (|x| |c|): one dot product per pair, with both norms precomputed
+
+        public String name() {
+            return "cosine";
+        }
+
+        public double distance(int[] item, long itemSquaredNorm, double itemNorm, Centroids centroids, int centroid) {
+            return centroids.cosineDistance(item, itemNorm, centroid);
+        }
+
+        public void products(SparseItems items, int item, Centroids centroids, int from, int to, long[] products) {
+            centroids.dotProducts(items, item, from, to, products);
+        }
+
+        public double distance(long product, long itemSquaredNorm, double itemNorm, Centroids centroids, int centroid) {
+            return 1 - (product / (itemNorm * centroids.norm(centroid)));
+        }
+
+        public double distance(byte[] item, double[] centroid) {
+            return 1 - (Kernels.dotProduct(item, centroid) / (Dataset.norm(item) * Kernels.norm(centroid)));
+        }
+
+        public double distance(float[] point, double pointNorm, double[] centroid, double centroidNorm) {
+            return 1 - (Kernels.dotProduct(point, centroid) / (pointNorm * centroidNorm));
+        }
+
+        public double metric(double distance) {
+            // |x/|x| - c/|c||^2 = 2 - 2 cos = 2 * distance
+            return Math.sqrt(2 * Math.max(distance, 0.0));
+        }
+
+        public double metric(double[] a, double[] b) {
+            double normA = Kernels.norm(a), normB = Kernels.norm(b), sum = 0.0;
+            for (int i = 0; i < a.length; i++) {
+                double difference = a[i] / normA - b[i] / normB;
+                sum += difference * difference;
+            }
+            return Math.sqrt(sum);
+        }
+    }
+
+    // -- Squared Euclidean ------------------------------------------------------------
+
+    final class SquaredEuclidean implements DistanceKernel {
+        // |x - c|^2 = |x|^2 - 2 x . c + |c|^2: the same single dot product as cosine,
+        // with exact integer norms, so the whole distance is an exact integer
+
+        public String name() {
+            return "euclidean";
+        }
+
+        public double distance(int[] item, long itemSquaredNorm, double itemNorm, Centroids centroids, int centroid) {
+            return distance(centroids.dotProduct(item, centroid), itemSquaredNorm, itemNorm, centroids, centroid);
+        }
+
+        public void products(SparseItems items, int item, Centroids centroids, int from, int to, long[] products) {
+            centroids.dotProducts(items, item, from, to, products);
+        }
+
+        public double distance(long product, long itemSquaredNorm, double itemNorm, Centroids centroids, int centroid) {
+            int shift = centroids.shift();
+            long distance = (itemSquaredNorm << (2 * shift)) - (product << (shift + 1)) + centroids.squaredNorm(centroid);
+            return distance / (double) (1L << (2 * shift));
+        }
+
+        public double distance(byte[] item, double[] centroid) {
+            return Kernels.squaredEuclidean(item, centroid);
+        }
+
+        public double distance(float[] point, double pointNorm, double[] centroid, double centroidNorm) {
+            return Kernels.squaredEuclidean(point, centroid);
+        }
+
+        public double metric(double distance) {
+            return Math.sqrt(Math.max(distance, 0.0));
+        }
+
+        public double metric(double[] a, double[] b) {
+            double sum = 0.0;
+            for (int i = 0; i < a.length; i++) {
+                sum += (a[i] - b[i]) * (a[i] - b[i]);
+            }
+            return Math.sqrt(sum);
+        }
+    }
+
+    // -- L1 ---------------------------------------------------------------------------
+
+    final class Manhattan implements DistanceKernel {
+        // The sum of absolute pixel differences; the centroid minimizing it is the
+        // per-pixel median of the members rather than their mean
+
+        public String name() {
+            return "l1";
+        }
+
+        public double distance(int[] item, long itemSquaredNorm, double itemNorm, Centroids centroids, int centroid) {
+            return centroids.manhattan(item, centroid) / (double) (1 << centroids.shift());
+        }
+
+        public void products(SparseItems items, int item, Centroids centroids, int from, int to, long[] products) {
+            centroids.manhattans(items, item, from, to, products);
+        }
+
+        public double distance(long product, long itemSquaredNorm, double itemNorm, Centroids centroids, int centroid) {
+            return product / (double) (1 << centroids.shift());
+        }
+
+        public double distance(byte[] item, double[] centroid) {
+            return Kernels.manhattan(item, centroid);
+        }
+
+        public double distance(float[] point, double pointNorm, double[] centroid, double centroidNorm) {
+            return Kernels.manhattan(point, centroid);
+        }
+
+        public double metric(double distance) {
+            return distance;
+        }
+
+        public double metric(double[] a, double[] b) {
+            double sum = 0.0;
+            for (int i = 0; i < a.length; i++) {
+                sum += Math.abs(a[i] - b[i]);
+            }
+            return sum;
+        }
+
+        public boolean centroidIsMean() {
+            return false;
+        }
+
+        public double sparseMaxDensity() {
+            // Each nonzero pixel costs an absolute difference rather than a multiply-add
+            return 0.1;
+        }
+
+        public double[] centroid(Dataset items, int[] members) {
+            // The (lower) median of each pixel, from a histogram of its values (a single
+            // pass over the members, which is cheaper than splitting 800KB histograms)
+            int length = items.length();
+            int[] histograms = new int[length * 256];
+            for (int item : members) {
+                byte[] pixels = Final.read(items, item);
+                for (int i = 0; i < length; i++) {
+                    histograms[i * 256 + (pixels[i] & 0xFF)]++;
+                }
+            }
+            int half = (members.length + 1) / 2;
+            double[] median = new double[length];
+            for (int i = 0; i < length; i++) {
+                int value = 0;
+                for (int seen = histograms[i * 256]; seen < half; seen += histograms[i * 256 + value]) {
+                    value++;
+                }
+                median[i] = value;
+            }
+            return median;
+        }
+
+        public double[] centroid(float[][] points, int[] members) {
+            // The (lower) median of each coordinate
+            float[] values = new float[members.length];
+            double[] median = new double[points[members[0]].length];
+            for (int i = 0; i < median.length; i++) {
+                for (int m = 0; m < members.length; m++) {
+                    values[m] = points[members[m]][i];
+                }
+                Arrays.sort(values);
+                median[i] = values[(members.length - 1) / 2];
+            }
+            return median;
+        }
+    }
+}
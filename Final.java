@@ -3,89 +3,151 @@
 // Final Project
 // May 18, 2024
 
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.IntFunction;
+import java.util.function.IntToDoubleFunction;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
-import java.io.BufferedWriter;
-import java.util.AbstractMap;
-import java.util.Comparator;
-import java.util.Collection;
+import java.util.stream.StreamSupport;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.io.IOException;
-import java.io.FileWriter;
 import java.util.Random;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 
 public class Final {
     private static int K = 60;
     private static int SEED = -2124786175;
     private static int MAX_ITERATIONS = 30;
     private static double MIN_MODIFICATIONS_RATIO = 0.007;
+    private static String STORAGE = "heap"; // heap, direct (off-heap memory) or the name of a scratch file to map
+    private static String CACHE = "./cache"; // Directory of preprocessed data sets, or null to always preprocess
+    private static final int PREPROCESS_VERSION = 1; // Bump whenever preprocessImage changes what it produces
+    private static final double CONTRAST = 1.2;
     private static final boolean DEBUG = false;
+    private static DistanceKernel DISTANCE = DistanceKernel.COSINE; // cosine, euclidean or l1
+    private static final int CENTROID_SHIFT = 8; // Fractional bits of the centroid values the distance kernels see
+    private static String BOUNDS = "auto"; // Pruning of distance evaluations: auto (Elkan for K <= 100 if its N x K bounds fit in 256MB, else Hamerly), elkan, hamerly or none
+    private static int BATCH_SIZE = 0; // Items per mini-batch, or 0 for full-batch K-Means
+    private static int BATCHES = 100; // Number of mini-batches
+    private static boolean FINAL_PASS = true; // Whether mini-batch K-Means ends by assigning every item
+    private static boolean COMPARE = false; // Report objective and purity (and run full-batch K-Means too, for mini-batches)
+    private static String INITIALIZATION = "kmeans++"; // kmeans++ or kmeans|| (oversampling, for large K and N)
+    private static final int OVERSAMPLING_ROUNDS = 5; // Sampling rounds of K-Means||
+    private static final int SEEDING_CHUNK = 1 << 12; // Items per parallel task (and per partial sum) when seeding
+    private static int COMPONENTS = 0; // Principal components to cluster on, or 0 to cluster the pixels themselves
+    private static final int PCA_SAMPLE = 10000; // Items the principal components are fitted to
+    private static boolean MULTIRESOLUTION = false; // Cluster pooled images first, then refine at full resolution
+    private static final int POOLING_LEVELS = 2; // Coarser levels of multi-resolution K-Means (14x14 and 7x7 for MNIST)
+    private static int BINARY_THRESHOLD = 0; // Cluster black and white images (pixels at or above it are black), or 0 for grayscale
+    private static String BINARY_DISTANCE = "hamming"; // Distance between black and white images: hamming or jaccard
+    private static String SPARSE = "auto"; // Read only the nonzero pixels of items: auto (by density), on or off
+    private static boolean VERIFY = false; // Check every distance of the vectorized kernel against the scalar one
     private static final Random random = new Random(SEED);
 	private static final List<Integer> allTimes = new ArrayList<>();
+	private static final List<Double> allChanges = new ArrayList<>();
+	private static final List<Double> allSkipped = new ArrayList<>();
+	private static int initializationTimeMs;
 	private static final ExecutorService executor = Executors.newSingleThreadExecutor();
-    private static double[][] distanceMatrix;
+    private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[0]);
+    private static final ThreadLocal<int[]> widened = ThreadLocal.withInitial(() -> new int[0]);
+    public static byte[] read(final Dataset items, final int item) {
+        // Copies an item's pixels into this thread's scratch buffer (valid until the next read on this thread)
+        byte[] pixels = scratch.get();
+        if (pixels.length != items.length()) scratch.set(pixels = new byte[items.length()]);
+        return items.read(item, pixels);
+    }
+    public static int[] widen(final Dataset items, final int item) {
+        // An item's pixels as ints in this thread's scratch buffer (valid until the next widen on this thread)
+        int[] pixels = widened.get();
+        if (pixels.length != items.length()) widened.set(pixels = new int[items.length()]);
+        return Kernels.widen(read(items, item), pixels);
+    }
+    public static double cosineDistance(final byte[] a, final double normA, final byte[] b, final double normB) {
+        // Cosine distance given both (precomputed) norms: a single pass over the pixels
+        return 1 - (Kernels.dotProduct(a, b) / (normA * normB));
+    }
+    public static double cosineDistance(final byte[] a, final byte[] b) {
+        return cosineDistance(a, Dataset.norm(a), b, Dataset.norm(b));
+    }
     public static double cosineDistance(final Image a, final Image b) {
-        double dotProduct = 0.0, normA = 0.0, normB = 0.0;
-        int pixelA, pixelB;
-        for (int i = 0; i < a.rows(); i++) {
-            for (int j = 0; j < a.columns(); j++) {
-                pixelA = a.get(i, j);
-                pixelB = b.get(i, j);
-                dotProduct += pixelA * pixelB;
-                normA += pixelA * pixelA;
-                normB += pixelB * pixelB;
+        return cosineDistance(a.copy(), b.copy());
+    }
+    public static SparseItems sparseItems(final Dataset items) {
+        // The items' nonzero pixels if the distance kernel should read them instead of all the pixels, or null (also
+        // when there are too many of them to index)
+        if (SPARSE.equals("off")) return null;
+        final long nonzero = SparseItems.nonzero(items);
+        if (nonzero > SparseItems.MAX_ENTRIES) return null;
+        if (SPARSE.equals("auto") && nonzero / ((double) items.size() * items.length()) > DISTANCE.sparseMaxDensity()) return null;
+        return items.sparse();
+    }
+    public static long assignNearest(final Dataset items, final SparseItems sparse, final double[][] centroids, final int[] nearest, final double[] distances, final Bounds bounds) {
+        // Finds the nearest centroid of every item (and, without bounds, its distance) without storing all N x K
+        // distances and returns the number of distances computed; centroids change once per iteration, so they
+        // are converted (and their norms computed) once here
+        final Centroids model = Centroids.of(centroids, CENTROID_SHIFT);
+        final double[][] modelPixels = VERIFY ? IntStream.range(0, model.k()).mapToObj(model::pixels).toArray(double[][]::new) : null;
+        if (bounds != null) bounds.assign(model, nearest);
+        else model.assign(DISTANCE, items, sparse, null, nearest, distances);
+        if (VERIFY) IntStream.range(0, items.size()).parallel().forEach(i -> {
+            final byte[] pixels = read(items, i);
+            int best = -1;
+            double bestDistance = 0.0;
+            for (int j = 0; j < centroids.length; j++) {
+                final double distance = DISTANCE.distance(pixels, modelPixels[j]);
+                if (best < 0 || Double.compare(distance, bestDistance) < 0) {
+                    best = j;
+                    bestDistance = distance;
+                }
             }
-        }
-        return 1 - (dotProduct / (Math.sqrt(normA) * Math.sqrt(normB)));
-    }
-    public static void initializeDistanceMatrix(final Image[] items, final Image[] centroids) {
-        final int numItems = items.length, numCentroids = centroids.length;
-        distanceMatrix = new double[numItems][numCentroids];
-        IntStream.range(0, numItems).parallel().forEach(i ->
-            IntStream.range(0, numCentroids).parallel().forEach(j ->
-                distanceMatrix[i][j] = cosineDistance(items[i], centroids[j])
-            )
-        );
-    }
-    public static int nearestCosine(final int itemIndex) {
-        return IntStream.range(0, distanceMatrix[itemIndex].length).parallel()
-                .mapToObj(i -> new AbstractMap.SimpleEntry<>(i, distanceMatrix[itemIndex][i]))
-                .min(Comparator.comparingDouble(AbstractMap.SimpleEntry::getValue))
-                .map(AbstractMap.SimpleEntry::getKey)
-                .orElse(-1);
+            if (best != nearest[i] || (bounds == null && bestDistance != distances[i]))
+                throw new IllegalStateException("Vectorized assignment differs from scalar assignment (item " + i + ")");
+        });
+        return bounds != null ? bounds.evaluations() : (long) items.size() * centroids.length;
     }
 
-	public static Image computeCentroid(final Collection<Image> items) {
-		final int rows = items.iterator().next().rows(), columns = items.iterator().next().columns();
-		final int[][] centroidPixels = new int[rows][columns];
-		items.parallelStream().forEach(item -> {
-			for (int i = 0; i < rows; i++)
-				for (int j = 0; j < columns; j++)
-					centroidPixels[i][j] += item.get(i, j);
+	public static double[] computeCentroid(final Dataset items, final int[] members) {
+		final int length = items.length();
+		final long[] centroidPixels = Arrays.stream(members).parallel().collect(() -> new long[length], (sums, item) -> {
+			final byte[] pixels = read(items, item);
+			for (int i = 0; i < length; i++)
+				sums[i] += pixels[i] & 0xFF;
+		}, (sums, other) -> {
+			for (int i = 0; i < length; i++)
+				sums[i] += other[i];
 		});
-		final int itemCount = items.size();
-		for (int i = 0; i < rows; i++)
-			for (int j = 0; j < columns; j++)
-				centroidPixels[i][j] /= itemCount;
-		final byte[][] centroidByteArray = new byte[rows][columns];
-		for (int i = 0; i < rows; i++)
-			for (int j = 0; j < columns; j++)
-				centroidByteArray[i][j] = (byte) centroidPixels[i][j];
+		final int itemCount = members.length;
+		final double[] centroid = new double[length];
+		for (int i = 0; i < length; i++)
+			centroid[i] = centroidPixels[i] / (double) itemCount;
 		if (DEBUG)
 			System.out.printf("Computed new centroid from %d items\n", itemCount);
-		return new Image(centroidByteArray, -1);
+		return centroid;
 	}
-	public static int findClusterWithMostLabel(final ConcurrentLinkedQueue<Image>[] clusters, final int label) {
+	public static double[] centroidValues(final Image image) {
+		final byte[] pixels = image.copy();
+		final double[] values = new double[pixels.length];
+		for (int i = 0; i < pixels.length; i++)
+			values[i] = pixels[i] & 0xFF;
+		return values;
+	}
+	public static Image centroidImage(final double[] values, final int rows, final int columns) {
+		// Rounds a centroid to a displayable (byte) image
+		final byte[] pixels = new byte[values.length];
+		for (int i = 0; i < values.length; i++)
+			pixels[i] = (byte) Math.min(Math.max(Math.round(values[i]), 0), 255);
+		return new Image(pixels, 0, rows, columns, -1, -1);
+	}
+	public static int findClusterWithMostLabel(final Dataset items, final Clusters clusters, final int label) {
 		int maxCount = 0;
 		int clusterIndex = -1;
-		for (int i = 0; i < clusters.length; i++) {
-			final int count = (int) clusters[i].stream().filter(image -> image.label() == label).count();
+		for (int i = 0; i < clusters.k(); i++) {
+			final int count = (int) clusters.stream(i).filter(item -> items.label(item) == label).count();
 			if (count > maxCount) {
 				maxCount = count;
 				clusterIndex = i;
@@ -93,70 +155,261 @@ public class Final {
 		}
 		return clusterIndex;
 	}
-    public static Image[] kMeansPlusPlusInitialization(final Image[] items, final int k) {
-        final Image[] centroids = new Image[k];
-        final Random random = new Random(SEED);
+    public static Image[] initialize(final Dataset items, final int k) {
+        // The initial centroids, by the chosen initialization (timed for the run summary)
+        final long startTime = System.currentTimeMillis();
+        System.out.printf("Initializing clustering with %s centroids...\n\n", INITIALIZATION.equals("kmeans||") ? "K-Means||" : "K-Means++");
+        final Image[] centroids = INITIALIZATION.equals("kmeans||") ? kMeansParallelInitialization(items, k) : kMeansPlusPlusInitialization(items, k);
+        initializationTimeMs = (int) (System.currentTimeMillis() - startTime);
+        return centroids;
+    }
+    public static Image[] kMeansPlusPlusInitialization(final Dataset items, final int k) {
+        return Arrays.stream(kMeansPlusPlusSeeds(items, null, k, new Random(SEED))).mapToObj(items::image).toArray(Image[]::new);
+    }
+    public static int[] kMeansPlusPlusSeeds(final Dataset items, final long[] weights, final int k, final Random random) {
+        // The indices of K items chosen by K-Means++ (each item counting weights[j] times, if given)
+        final long[] squaredNorms = items.squaredNorms();
+        final double[] norms = items.norms();
+        return kMeansPlusPlusSeeds(items.size(), weights, k, random, seed -> {
+            final Centroids centroid = Centroids.of(new Image[] { items.image(seed) });
+            return j -> DISTANCE.distance(widen(items, j), squaredNorms[j], norms[j], centroid, 0);
+        });
+    }
+    public static int[] kMeansPlusPlusSeeds(final int size, final long[] weights, final int k, final Random random, final IntFunction<IntToDoubleFunction> distanceTo) {
+        // The same for any items, given the distance of every item j to an item seed as distanceTo.apply(seed).applyAsDouble(j)
+        if (k > size) throw new IllegalArgumentException("Cannot choose " + k + " seeds from " + size + " items");
+        final int chunks = (size + SEEDING_CHUNK - 1) / SEEDING_CHUNK;
+        final int[] seeds = new int[k];
         // Step 1: Choose the first centroid randomly
-        centroids[0] = items[random.nextInt(items.length)];
-        if (DEBUG) System.out.printf("Initial centroid 0 is image %d\n", centroids[0].id());
+        seeds[0] = random.nextInt(size);
+        if (DEBUG) System.out.printf("Initial centroid 0 is item %d\n", seeds[0]);
         // Step 2: Compute the distance of each point to the nearest centroid
-        final double[] distances = new double[items.length];
+        final double[] distances = new double[size], prefix = new double[size], offsets = new double[chunks + 1];
         Arrays.fill(distances, Double.MAX_VALUE);
         if (DEBUG) System.out.println("Computing distances to nearest centroid...");
         for (int i = 1; i < k; i++) {
-            double totalDistance = 0.0;
-            for (int j = 0; j < items.length; j++) {
-                final double distance = cosineDistance(items[j], centroids[i - 1]);
-                distances[j] = Math.min(distances[j], distance);
-                totalDistance += distances[j];
-            }
-            if (DEBUG) System.out.printf("Total distance for centroid %d: %.2f\n", i, totalDistance);
-            double r = random.nextDouble() * totalDistance;
-            for (int j = 0; j < items.length; j++) {
-                r -= distances[j];
-                if (r <= 0) {
-                    centroids[i] = items[j];
-                    if (DEBUG) System.out.printf("Initial centroid %d is image %d\n", i, centroids[i].id());
-                    break;
+            final IntToDoubleFunction distance = distanceTo.apply(seeds[i - 1]);
+            // A seed is exactly at distance 0 from itself (so it is never picked again), whatever rounding gives
+            distances[seeds[i - 1]] = 0.0;
+            // Each chunk of items (in parallel) updates its distances and sums them from the start of the chunk
+            IntStream.range(0, chunks).parallel().forEach(chunk -> {
+                double sum = 0.0;
+                for (int j = chunk * SEEDING_CHUNK, end = Math.min(size, j + SEEDING_CHUNK); j < end; j++) {
+                    distances[j] = Math.min(distances[j], distance.applyAsDouble(j));
+                    sum += weights == null ? distances[j] : distances[j] * weights[j];
+                    prefix[j] = sum;
                 }
-            }
+            });
+            for (int chunk = 0; chunk < chunks; chunk++)
+                offsets[chunk + 1] = offsets[chunk] + prefix[Math.min(size, (chunk + 1) * SEEDING_CHUNK) - 1];
+            if (DEBUG) System.out.printf("Total distance for centroid %d: %.2f\n", i, offsets[chunks]);
+            // Step 3: Pick the first item whose running total exceeds a random fraction of the total or, if every
+            // item coincides with a seed (or has no weight), any item that is not a seed yet
+            seeds[i] = offsets[chunks] > 0 ? pick(prefix, offsets, random.nextDouble() * offsets[chunks]) : unchosen(seeds, i, size, random);
+            if (DEBUG) System.out.printf("Initial centroid %d is item %d\n", i, seeds[i]);
         }
         if (DEBUG) System.out.println("Initialization of centroids complete!");
-        return centroids;
+        if (VERIFY && Arrays.stream(seeds).distinct().count() != k) throw new IllegalStateException("K-Means++ chose an item twice");
+        return seeds;
     }
-    public static void kMeans(final Image[] items, final int k) {
-        System.out.println("Initializing clustering with K-Means++ centroids...\n");
-        final Image[] centroids = kMeansPlusPlusInitialization(items, k);
+    private static int unchosen(final int[] seeds, final int count, final int size, final Random random) {
+        // A random item that is not among the first count seeds
+        while (true) {
+            final int item = random.nextInt(size);
+            if (Arrays.stream(seeds, 0, count).noneMatch(seed -> seed == item)) return item;
+        }
+    }
+    private static int pick(final double[] prefix, final double[] offsets, final double r) {
+        // The first j with offsets[chunk of j] + prefix[j] > r, which adds a positive weight (binary searches over
+        // the chunks, then within one)
+        int low = 0, high = offsets.length - 2;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (offsets[middle + 1] > r) high = middle;
+            else low = middle + 1;
+        }
+        final double offset = offsets[low];
+        int first = low * SEEDING_CHUNK, last = Math.min(prefix.length, first + SEEDING_CHUNK) - 1;
+        while (first < last) {
+            final int middle = (first + last) >>> 1;
+            if (offset + prefix[middle] > r) last = middle;
+            else first = middle + 1;
+        }
+        return first;
+    }
+    public static Image[] kMeansParallelInitialization(final Dataset items, final int k) {
+        // K-Means|| (Bahmani et al., 2012): instead of K passes that each pick one item, a few passes that each pick
+        // about 2K items at once, every item independently with probability proportional to its distance to the
+        // candidates so far.  The candidates, weighted by the number of items closest to each, are then reduced
+        // to K by K-Means++, which is cheap since there are far fewer candidates than items.
+        final Random random = new Random(SEED);
+        final int size = items.size();
+        final double oversampling = 2.0 * k;
+        final List<Integer> candidates = new ArrayList<>();
+        final boolean[] isCandidate = new boolean[size];
+        final double[] distances = new double[size];
+        final int[] closest = new int[size], nearest = new int[size];
+        final double[] nearestDistances = new double[size];
+        List<Integer> added = List.of(random.nextInt(size));
+        for (int round = 0; ; round++) {
+            final int first = candidates.size();
+            candidates.addAll(added);
+            for (final int candidate : added) isCandidate[candidate] = true;
+            if (!added.isEmpty()) {
+                // Lowers each item's distance to the nearest candidate with the candidates just added
+                Centroids.of(added.stream().map(items::image).toArray(Image[]::new)).assign(DISTANCE, items, nearest, nearestDistances);
+                IntStream.range(0, size).parallel().forEach(j -> {
+                    if (first == 0 || nearestDistances[j] < distances[j]) {
+                        distances[j] = nearestDistances[j];
+                        closest[j] = first + nearest[j];
+                    }
+                });
+            }
+            if (DEBUG) System.out.printf("K-Means|| round %d: %d candidates\n", round, candidates.size());
+            if (round >= OVERSAMPLING_ROUNDS) {
+                if (candidates.size() >= Math.min(k, size)) break;
+                // Too few candidates: one more round adds random items that are not candidates yet, so they take
+                // their share of the items (and their weights) like the others
+                added = random.ints(0, size).filter(j -> !isCandidate[j]).distinct().limit(Math.min(k, size) - candidates.size()).boxed().collect(Collectors.toList());
+                continue;
+            }
+            double total = 0.0;
+            for (final double distance : distances) total += distance;
+            final double scale = oversampling / total;
+            final long roundSeed = random.nextLong();
+            added = IntStream.range(0, size).parallel().filter(j -> !isCandidate[j] && uniform(roundSeed, j) < distances[j] * scale).boxed().collect(Collectors.toList());
+        }
+        final long[] weights = new long[candidates.size()];
+        for (final int candidate : closest) weights[candidate]++;
+        final Dataset pool = Dataset.of(candidates.stream().map(items::image).toArray(Image[]::new));
+        return Arrays.stream(kMeansPlusPlusSeeds(pool, weights, k, random)).mapToObj(pool::image).toArray(Image[]::new);
+    }
+    private static double uniform(final long seed, final int item) {
+        // A uniform double in [0, 1) for an item, the same whichever thread asks (the finalizer of MurmurHash3)
+        long z = seed + (item + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return ((z ^ (z >>> 33)) >>> 11) * 0x1.0p-53;
+    }
+    public static void kMeans(final Dataset items, final int k) {
+        final int[] labels = new int[items.size()];
+        final String method = COMPONENTS > 0 ? "PCA (d = " + COMPONENTS + ")" : BINARY_THRESHOLD > 0 ? "Binary (" + BINARY_DISTANCE + ")" : BATCH_SIZE > 0 ? "Mini-batch" : MULTIRESOLUTION ? "Multi-resolution" : "Full-batch";
+        double[] fullBatch = null;
+        if (COMPARE && (BATCH_SIZE > 0 || COMPONENTS > 0 || MULTIRESOLUTION || BINARY_THRESHOLD > 0)) {
+            // Runs full-batch K-Means first, for reference
+            final long startTime = System.currentTimeMillis();
+            fullBatch = evaluate(items, fullBatchKMeans(items, k, labels), System.currentTimeMillis() - startTime);
+            System.out.println("\n");
+        }
+        final long startTime = System.currentTimeMillis();
+        final double[][] centroids = COMPONENTS > 0 ? projectedKMeans(items, k, labels) : BINARY_THRESHOLD > 0 ? binaryKMeans(items, k, labels) : BATCH_SIZE > 0 ? miniBatchKMeans(items, k, labels) : MULTIRESOLUTION ? multiResolutionKMeans(items, k, labels) : fullBatchKMeans(items, k, labels);
+        if (COMPARE) {
+            final double[] result = evaluate(items, centroids, System.currentTimeMillis() - startTime);
+            System.out.println("\n");
+            if (fullBatch != null) System.out.printf("Full-batch: objective %.6f, purity %.2f%%, %s\n", fullBatch[0], fullBatch[1] * 100, formatTime((long) fullBatch[2]));
+            System.out.printf("%s: objective %.6f, purity %.2f%%, %s", method, result[0], result[1] * 100, formatTime((long) result[2]));
+        }
+        displayResults(Arrays.stream(centroids).map(centroid -> centroidImage(centroid, items.rows(), items.columns())).toArray(Image[]::new), Clusters.of(labels, k), items, labels);
+    }
+    public static double[] evaluate(final Dataset items, final double[][] centroids, final long timeMs) {
+        // The mean distance of the items to their nearest centroids, the fraction of items sharing the most common label
+        // of their cluster (purity) and the time taken, for comparing results without classifying the centroids
+        final int[] nearest = new int[items.size()];
+        final double[] distances = new double[items.size()];
+        Centroids.of(centroids, CENTROID_SHIFT).assign(DISTANCE, items, sparseItems(items), null, nearest, distances);
+        final int[][] counts = new int[centroids.length][256];
+        for (int i = 0; i < items.size(); i++) counts[nearest[i]][items.label(i) & 0xFF]++;
+        final int majority = Arrays.stream(counts).mapToInt(count -> Arrays.stream(count).max().orElse(0)).sum();
+        return new double[] { Arrays.stream(distances).sum() / items.size(), (double) majority / items.size(), timeMs };
+    }
+    public static double[][] fullBatchKMeans(final Dataset items, final int k, final int[] labels) {
+        allTimes.clear();
+        allChanges.clear();
+        allSkipped.clear();
+        // Centroids are kept at full precision across iterations and only rounded for display and export
+        final double[][] centroids = Arrays.stream(initialize(items, k)).map(Final::centroidValues).toArray(double[][]::new);
         System.out.println("Initialization complete! Beginning K-Means iteration.\n");
-        final int[] labels = new int[items.length];
+        Arrays.fill(labels, 0);
+        return fullBatchKMeans(items, centroids, labels);
+    }
+    public static double[][] multiResolutionKMeans(final Dataset items, final int k, final int[] labels) {
+        // Coarse to fine: K-Means on 2x2-pooled images (twice pooled: 7x7 for MNIST), then on once pooled images
+        // (14x14) from the converged centroids, upsampled, and finally on the images themselves.  Assignments
+        // mostly settle at the coarse levels, where each distance costs 1/16 or 1/4 as much.
+        final List<Dataset> levels = new ArrayList<>(List.of(items));
+        while (levels.size() <= POOLING_LEVELS && levels.get(0).rows() % 2 == 0 && levels.get(0).columns() % 2 == 0)
+            levels.add(0, pool(levels.get(0)));
+        System.out.printf("Clustering at %dx%d first\n\n", levels.get(0).rows(), levels.get(0).columns());
+        double[][] centroids = fullBatchKMeans(levels.get(0), k, labels);
+        for (int level = 1; level < levels.size(); level++) {
+            final Dataset finer = levels.get(level);
+            System.out.printf("\n\nRefining at %dx%d\n\n", finer.rows(), finer.columns());
+            centroids = fullBatchKMeans(finer, Arrays.stream(centroids).map(centroid -> upsample(centroid, finer.rows(), finer.columns())).toArray(double[][]::new), labels);
+        }
+        return centroids;
+    }
+    public static Dataset pool(final Dataset images) {
+        // The images at half the resolution, each pixel the (rounded) mean of a 2x2 block; these are kept on the heap
+        final int rows = images.rows() / 2, columns = images.columns() / 2;
+        final Dataset pooled = new Dataset(new byte[Math.multiplyExact(images.size(), rows * columns)], images.labels().clone(), images.ids().clone(), rows, columns);
+        IntStream.range(0, images.size()).parallel().forEach(image -> {
+            final byte[] pixels = read(images, image), pooledPixels = new byte[rows * columns];
+            for (int i = 0; i < rows; i++) {
+                for (int j = 0; j < columns; j++) {
+                    final int top = 2 * i * images.columns() + 2 * j, bottom = top + images.columns();
+                    final int sum = (pixels[top] & 0xFF) + (pixels[top + 1] & 0xFF) + (pixels[bottom] & 0xFF) + (pixels[bottom + 1] & 0xFF);
+                    pooledPixels[i * columns + j] = (byte) ((sum + 2) / 4);
+                }
+            }
+            pooled.write(image, pooledPixels);
+        });
+        return pooled;
+    }
+    public static double[] upsample(final double[] centroid, final int rows, final int columns) {
+        // A centroid at twice the resolution, each value repeated over a 2x2 block (so pooling gives it back)
+        final double[] upsampled = new double[rows * columns];
+        for (int i = 0; i < rows; i++)
+            for (int j = 0; j < columns; j++)
+                upsampled[i * columns + j] = centroid[(i / 2) * (columns / 2) + j / 2];
+        return upsampled;
+    }
+    public static double[][] fullBatchKMeans(final Dataset items, final double[][] centroids, final int[] labels) {
+        // K-Means from the given centroids and labels (all in [0, K))
+        final int k = centroids.length;
+        final int[] nearest = new int[items.size()];
+        final double[] nearestDistances = new double[items.size()];
+        final Bounds bounds = BOUNDS.equals("none") ? null : new Bounds(DISTANCE, items, k, BOUNDS.equals("auto") ? Bounds.select(items.size(), k) : Bounds.Mode.valueOf(BOUNDS.toUpperCase()));
+        if (bounds != null) System.out.printf("Pruning distance evaluations with %s bounds\n\n", bounds.mode() == Bounds.Mode.ELKAN ? "Elkan" : "Hamerly");
+        // Sparse items serve the cluster sums and (bounds compute one distance at a time) assignments without bounds
+        final SparseItems sparse = sparseItems(items);
+        if (sparse != null) System.out.printf("Using sparse items (%.1f%% of pixels nonzero)\n\n", sparse.density() * 100);
         final AtomicBoolean converged = new AtomicBoolean(true);
         int iterations = 0, iterationTimeMs;
-        final ConcurrentLinkedQueue<Image>[] clusters = new ConcurrentLinkedQueue[k];
-        for (int i = 0; i < k; i++) clusters[i] = new ConcurrentLinkedQueue<>();
+        // Cluster sums follow the items that move, and each cluster's mean is only recomputed when its members change
+        final ClusterSums sums = new ClusterSums(items, sparse, k, labels);
+        final double[][] means = new double[k][];
         do {
             converged.set(true);
             final long startTime = System.currentTimeMillis();
-            final AtomicInteger changes = new AtomicInteger(0);
-            initializeDistanceMatrix(items, centroids);
-            IntStream.range(0, items.length).parallel().forEach(i -> {
-                final int nearestCentroid = nearestCosine(i);
-                if (labels[i] != nearestCentroid) {
-                    labels[i] = nearestCentroid;
-                    converged.set(false);
-                    changes.incrementAndGet();
-                }
-            });
-            for (int i = 0; i < k; i++) clusters[i].clear();
-            IntStream.range(0, items.length).parallel().forEach(i -> clusters[labels[i]].add(items[i]));
+            final long evaluations = assignNearest(items, sparse, centroids, nearest, nearestDistances, bounds);
+            allSkipped.add(1 - evaluations / ((double) items.size() * k));
+            final int[] moved = IntStream.range(0, items.size()).parallel().filter(i -> labels[i] != nearest[i]).toArray();
+            sums.move(moved, labels, nearest);
+            for (final int i : moved) labels[i] = nearest[i];
+            if (moved.length > 0) converged.set(false);
+            // Members are only gathered when centroids are not means
+            final Clusters members = DISTANCE.centroidIsMean() ? null : Clusters.of(labels, k);
             final double weightNewCentroid = 0.4 - (0.3 * (iterations / (double) MAX_ITERATIONS));
             final double weightOldCentroid = 1.0 - weightNewCentroid;
             IntStream.range(0, k).forEach(i -> {
-                if (clusters[i].isEmpty()) {
+                if (sums.count(i) == 0) {
                     if (DEBUG) System.out.printf("Cluster %d is empty, reinitializing centroid\n", i);
-                    centroids[i] = items[random.nextInt(items.length)];
+                    centroids[i] = centroidValues(items.image(random.nextInt(items.size())));
+                    means[i] = null;
                 } else {
-                    final Image newCentroid = computeCentroid(clusters[i]);
-                    centroids[i] = weightedCentroidUpdate(centroids[i], newCentroid, weightOldCentroid, weightNewCentroid);
+                    if (sums.changed(i) || means[i] == null)
+                        means[i] = DISTANCE.centroidIsMean() ? sums.mean(i) : DISTANCE.centroid(items, members.members(i));
+                    weightedCentroidUpdate(centroids[i], means[i], weightOldCentroid, weightNewCentroid);
                 }
                 if (DEBUG) System.out.printf("Centroid %d updated\n", i);
             });
@@ -164,30 +417,221 @@ public class Final {
             if (DEBUG) System.out.println("Iteration: " + iterations);
             iterationTimeMs = (int) (System.currentTimeMillis() - startTime);
             allTimes.add(iterationTimeMs);
-            final double changeRatio = (double) changes.get() / items.length;
+            final double changeRatio = (double) moved.length / items.size();
+            allChanges.add(changeRatio);
             printProgressBar(iterations, MAX_ITERATIONS, iterationTimeMs, changeRatio);
             if (changeRatio < MIN_MODIFICATIONS_RATIO) {
                 System.out.printf("\n\n[!] Converged early at %d iterations! Only %.2f%% changes during this iteration.\n", iterations, changeRatio * 100);
                 break;
             }
         } while (!converged.get() && iterations < MAX_ITERATIONS);
-        displayResults(centroids, clusters, items, labels);
-    }
-    public static Image weightedCentroidUpdate(final Image oldCentroid, final Image newCentroid, final double weightOld, final double weightNew) {
-        final int rows = oldCentroid.rows(), columns = oldCentroid.columns();
-        final byte[][] updatedPixels = new byte[rows][columns];
-        for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < columns; j++) {
-                final int oldPixel = oldCentroid.get(i, j) & 0xFF;
-                final int newPixel = newCentroid.get(i, j) & 0xFF;
-                final int weightedPixel = (int) (oldPixel * weightOld + newPixel * weightNew);
-                updatedPixels[i][j] = (byte) Math.min(Math.max(weightedPixel, 0), 255);
+        return centroids;
+    }
+    public static double[][] miniBatchKMeans(final Dataset items, final int k, final int[] labels) {
+        // Mini-batch K-Means: each step assigns a random batch of items and moves each centroid towards its batch
+        // items with a per-centroid learning rate of 1 / (number of items it has been given so far), so the work
+        // per step depends on the batch size and not on the size of the data set
+        allTimes.clear();
+        allChanges.clear();
+        allSkipped.clear();
+        final int size = items.size(), batchSize = Math.min(BATCH_SIZE, size);
+        final Random random = new Random(SEED);
+        final int[] seedSample = sample(size, Math.min(size, 10 * Math.max(batchSize, k)), random);
+        final Dataset seedItems = Dataset.of(Arrays.stream(seedSample).mapToObj(items::image).toArray(Image[]::new));
+        final double[][] centroids = Arrays.stream(initialize(seedItems, k)).map(Final::centroidValues).toArray(double[][]::new);
+        System.out.printf("Initialization complete! Beginning mini-batch K-Means with batches of %d items.\n\n", batchSize);
+        final SparseItems sparse = sparseItems(items);
+        if (sparse != null) System.out.printf("Using sparse items (%.1f%% of pixels nonzero)\n\n", sparse.density() * 100);
+        Arrays.fill(labels, -1);
+        final long[] counts = new long[k];
+        final int[] nearest = new int[batchSize];
+        final double[] distances = new double[batchSize];
+        for (int batch = 1; batch <= BATCHES; batch++) {
+            final long startTime = System.currentTimeMillis();
+            final int[] indices = random.ints(batchSize, 0, size).sorted().toArray();
+            Centroids.of(centroids, CENTROID_SHIFT).assign(DISTANCE, items, sparse, indices, nearest, distances);
+            int changes = 0;
+            for (int j = 0; j < batchSize; j++) {
+                if (labels[indices[j]] != nearest[j]) changes++;
+                labels[indices[j]] = nearest[j];
             }
+            // Groups the batch by centroid; each centroid then takes in its items one at a time
+            final int[] start = new int[k + 1], order = new int[batchSize];
+            for (int j = 0; j < batchSize; j++) start[nearest[j] + 1]++;
+            for (int c = 0; c < k; c++) start[c + 1] += start[c];
+            final int[] next = start.clone();
+            for (int j = 0; j < batchSize; j++) order[next[nearest[j]]++] = j;
+            IntStream.range(0, k).parallel().forEach(c -> {
+                final double[] centroid = centroids[c];
+                for (int m = start[c]; m < start[c + 1]; m++) {
+                    final byte[] pixels = read(items, indices[order[m]]);
+                    final double rate = 1.0 / ++counts[c];
+                    for (int p = 0; p < centroid.length; p++)
+                        centroid[p] += rate * ((pixels[p] & 0xFF) - centroid[p]);
+                }
+            });
+            final int iterationTimeMs = (int) (System.currentTimeMillis() - startTime);
+            allTimes.add(iterationTimeMs);
+            final double changeRatio = (double) changes / batchSize;
+            allChanges.add(changeRatio);
+            printProgressBar(batch, BATCHES, iterationTimeMs, changeRatio);
+        }
+        if (FINAL_PASS) {
+            // One full assignment pass, so every item is in a cluster
+            final long startTime = System.currentTimeMillis();
+            final int[] all = new int[size];
+            Centroids.of(centroids, CENTROID_SHIFT).assign(DISTANCE, items, sparse, null, all, new double[size]);
+            final int changes = (int) IntStream.range(0, size).filter(i -> labels[i] != all[i]).count();
+            System.arraycopy(all, 0, labels, 0, size);
+            allTimes.add((int) (System.currentTimeMillis() - startTime));
+            System.out.printf("\n\nFinal assignment pass: %.2f%% of items were new to a cluster (never sampled, or moved).\n", 100.0 * changes / size);
         }
-        return new Image(updatedPixels, -1);
+        return centroids;
     }
-    public static double calculateClusterAccuracy(final Collection<Image> cluster, final int label) {
-        return (double) cluster.stream().filter(image -> image.label() == label).count() / cluster.size();
+    private static int[] sample(final int size, final int count, final Random random) {
+        // count distinct items out of size, in increasing order (Floyd's algorithm: one draw per item sampled)
+        final Set<Integer> chosen = new HashSet<>();
+        for (int j = size - count; j < size; j++) {
+            final int item = random.nextInt(j + 1);
+            chosen.add(chosen.contains(item) ? j : item);
+        }
+        return chosen.stream().mapToInt(Integer::intValue).sorted().toArray();
+    }
+    public static double[][] projectedKMeans(final Dataset items, final int k, final int[] labels) {
+        // K-Means on the items' coordinates along their leading principal components (see Projection), with the
+        // same seeding, centroid updates and stopping rule as fullBatchKMeans.  The centroids are mapped back to
+        // pixels at the end, as the centroids of their clusters' images.
+        allTimes.clear();
+        allChanges.clear();
+        allSkipped.clear();
+        final int size = items.size();
+        final long projectionStart = System.currentTimeMillis();
+        final Projection projection = Projection.fit(items, COMPONENTS, PCA_SAMPLE, new Random(SEED));
+        final float[][] points = projection.project(items);
+        final double[] norms = Arrays.stream(points).parallel().mapToDouble(Kernels::norm).toArray();
+        System.out.printf("Projected onto %d principal components (%.1f%% of the pixel energy) in %s\n\n", projection.dimensions(), projection.explained() * 100, formatTime(System.currentTimeMillis() - projectionStart));
+        final long initializationStart = System.currentTimeMillis();
+        System.out.println("Initializing clustering with K-Means++ centroids...\n");
+        final int[] seeds = kMeansPlusPlusSeeds(size, null, k, new Random(SEED), seed -> {
+            final double[] centroid = toDouble(points[seed]);
+            return j -> DISTANCE.distance(points[j], norms[j], centroid, norms[seed]);
+        });
+        final double[][] centroids = Arrays.stream(seeds).mapToObj(seed -> toDouble(points[seed])).toArray(double[][]::new);
+        initializationTimeMs = (int) (System.currentTimeMillis() - initializationStart);
+        System.out.println("Initialization complete! Beginning K-Means iteration.\n");
+        Arrays.fill(labels, 0);
+        int iterations = 0, changes;
+        do {
+            final long startTime = System.currentTimeMillis();
+            final double[] centroidNorms = Arrays.stream(centroids).mapToDouble(Kernels::norm).toArray();
+            changes = (int) IntStream.range(0, size).parallel().filter(i -> {
+                int best = 0;
+                double bestDistance = 0.0;
+                for (int c = 0; c < k; c++) {
+                    final double distance = DISTANCE.distance(points[i], norms[i], centroids[c], centroidNorms[c]);
+                    if (c == 0 || Double.compare(distance, bestDistance) < 0) {
+                        best = c;
+                        bestDistance = distance;
+                    }
+                }
+                if (labels[i] == best) return false;
+                labels[i] = best;
+                return true;
+            }).count();
+            final Clusters clusters = Clusters.of(labels, k);
+            final double weightNewCentroid = 0.4 - (0.3 * (iterations / (double) MAX_ITERATIONS));
+            final double weightOldCentroid = 1.0 - weightNewCentroid;
+            for (int i = 0; i < k; i++) {
+                if (clusters.size(i) == 0) centroids[i] = toDouble(points[random.nextInt(size)]);
+                else weightedCentroidUpdate(centroids[i], DISTANCE.centroid(points, clusters.members(i)), weightOldCentroid, weightNewCentroid);
+            }
+            iterations++;
+            final int iterationTimeMs = (int) (System.currentTimeMillis() - startTime);
+            allTimes.add(iterationTimeMs);
+            final double changeRatio = (double) changes / size;
+            allChanges.add(changeRatio);
+            printProgressBar(iterations, MAX_ITERATIONS, iterationTimeMs, changeRatio);
+            if (changeRatio < MIN_MODIFICATIONS_RATIO) {
+                System.out.printf("\n\n[!] Converged early at %d iterations! Only %.2f%% changes during this iteration.\n", iterations, changeRatio * 100);
+                break;
+            }
+        } while (changes > 0 && iterations < MAX_ITERATIONS);
+        final Clusters clusters = Clusters.of(labels, k);
+        return IntStream.range(0, k).mapToObj(i -> clusters.size(i) == 0 ? projection.reconstruct(centroids[i]) : DISTANCE.centroid(items, clusters.members(i))).toArray(double[][]::new);
+    }
+    public static double[][] binaryKMeans(final Dataset items, final int k, final int[] labels) {
+        // K-Means on the items' black and white bit vectors (see BinaryItems), with the same seeding and stopping
+        // rule as fullBatchKMeans.  Each centroid is its cluster's majority vote, which cannot be blended with the
+        // previous one, so it is replaced outright.  The centroids are mapped back to pixels at the end, as the
+        // centroids of their clusters' images.
+        allTimes.clear();
+        allChanges.clear();
+        allSkipped.clear();
+        final int size = items.size();
+        final BinaryItems.Distance bitDistance = BinaryItems.Distance.valueOf(BINARY_DISTANCE.toUpperCase());
+        final long packingStart = System.currentTimeMillis();
+        final BinaryItems bits = BinaryItems.of(items, BINARY_THRESHOLD);
+        System.out.printf("Packed %d items into %d longs each (pixels >= %d are black) in %s\n\n", size, bits.words(), BINARY_THRESHOLD, formatTime(System.currentTimeMillis() - packingStart));
+        final long initializationStart = System.currentTimeMillis();
+        System.out.println("Initializing clustering with K-Means++ centroids...\n");
+        final int[] seeds = kMeansPlusPlusSeeds(size, null, k, new Random(SEED), seed -> {
+            final long[] centroid = bits.item(seed);
+            final int count = BinaryItems.count(centroid);
+            return j -> bits.distance(bitDistance, j, centroid, count);
+        });
+        final long[][] centroids = Arrays.stream(seeds).mapToObj(bits::item).toArray(long[][]::new);
+        initializationTimeMs = (int) (System.currentTimeMillis() - initializationStart);
+        System.out.println("Initialization complete! Beginning K-Means iteration.\n");
+        Arrays.fill(labels, 0);
+        int iterations = 0, changes;
+        do {
+            final long startTime = System.currentTimeMillis();
+            final int[] centroidCounts = Arrays.stream(centroids).mapToInt(BinaryItems::count).toArray();
+            changes = (int) IntStream.range(0, size).parallel().filter(i -> {
+                int best = 0;
+                double bestDistance = 0.0;
+                for (int c = 0; c < k; c++) {
+                    final double distance = bits.distance(bitDistance, i, centroids[c], centroidCounts[c]);
+                    if (c == 0 || Double.compare(distance, bestDistance) < 0) {
+                        best = c;
+                        bestDistance = distance;
+                    }
+                }
+                if (labels[i] == best) return false;
+                labels[i] = best;
+                return true;
+            }).count();
+            final Clusters clusters = Clusters.of(labels, k);
+            IntStream.range(0, k).parallel().filter(i -> clusters.size(i) > 0).forEach(i -> centroids[i] = bits.majority(clusters.members(i)));
+            for (int i = 0; i < k; i++) {
+                if (clusters.size(i) == 0) centroids[i] = bits.item(random.nextInt(size));
+            }
+            iterations++;
+            final int iterationTimeMs = (int) (System.currentTimeMillis() - startTime);
+            allTimes.add(iterationTimeMs);
+            final double changeRatio = (double) changes / size;
+            allChanges.add(changeRatio);
+            printProgressBar(iterations, MAX_ITERATIONS, iterationTimeMs, changeRatio);
+            if (changeRatio < MIN_MODIFICATIONS_RATIO) {
+                System.out.printf("\n\n[!] Converged early at %d iterations! Only %.2f%% changes during this iteration.\n", iterations, changeRatio * 100);
+                break;
+            }
+        } while (changes > 0 && iterations < MAX_ITERATIONS);
+        final Clusters clusters = Clusters.of(labels, k);
+        return IntStream.range(0, k).mapToObj(i -> clusters.size(i) == 0 ? bits.pixels(centroids[i]) : DISTANCE.centroid(items, clusters.members(i))).toArray(double[][]::new);
+    }
+    private static double[] toDouble(final float[] values) {
+        final double[] result = new double[values.length];
+        for (int i = 0; i < values.length; i++) result[i] = values[i];
+        return result;
+    }
+    public static void weightedCentroidUpdate(final double[] centroid, final double[] newCentroid, final double weightOld, final double weightNew) {
+        // Blends the new centroid into the old one (in place)
+        for (int i = 0; i < centroid.length; i++)
+            centroid[i] = centroid[i] * weightOld + newCentroid[i] * weightNew;
+    }
+    public static double calculateClusterAccuracy(final Dataset items, final int[] cluster, final int label) {
+        return (double) Arrays.stream(cluster).filter(item -> items.label(item) == label).count() / cluster.length;
     }
     public static Image[] classifyCentroids(final Image[] centroids) {
         final Viewer viewer = new Viewer(centroids, "Cluster Centroids", 4, false, true);
@@ -210,66 +654,55 @@ public class Final {
         viewer.close();
         return classified;
     }
-    public static void displayResults(final Image[] centroids, final ConcurrentLinkedQueue<Image>[] clusters, final Image[] items, final int[] labels) {
+    public static void displayResults(final Image[] centroids, final Clusters clusters, final Dataset items, final int[] labels) {
         final Image[] processedCentroids = postProcessImages(centroids);
         System.out.println("\n");
         final int avg = (int) (allTimes.stream().mapToInt(Integer::intValue).average().orElse(0));
         final int total = allTimes.stream().mapToInt(Integer::intValue).sum();
-        System.out.printf("Execution Complete!\nTotal time: %s\nAverage time per iteration: ~%s\n\nWaiting for user to complete classification...\n\n", formatTime(total), formatTime(avg));
+        System.out.printf("Execution Complete!\nTotal time: %s\nAverage time per iteration: ~%s\n", formatTime(total), formatTime(avg));
+        System.out.printf("Initialization time (%s): %s\n", INITIALIZATION.equals("kmeans||") ? "K-Means||" : "K-Means++", formatTime(initializationTimeMs));
+        System.out.printf("Changes per iteration:%s\n", allChanges.stream().map(change -> String.format(" %.2f%%", change * 100)).collect(Collectors.joining()));
+        if (!allSkipped.isEmpty()) System.out.printf("Distance evaluations skipped per iteration:%s\n", allSkipped.stream().map(skipped -> String.format(" %.1f%%", skipped * 100)).collect(Collectors.joining()));
+        System.out.print("\nWaiting for user to complete classification...\n\n");
         for (int i = 0; i < processedCentroids.length; i++) processedCentroids[i].setId(i + 1);
         final Image[] newLabeled = classifyCentroids(processedCentroids);
         System.out.println("User finished classifying. Results:\n");
         double totalAccuracy = 0.0;
         for (int i = 0; i < processedCentroids.length; i++) {
-            final double clusterAccuracy = calculateClusterAccuracy(clusters[i], newLabeled[i].label());
+            final double clusterAccuracy = calculateClusterAccuracy(items, clusters.members(i), newLabeled[i].label());
             System.out.printf("Cluster %2d (Classified as %d) Accuracy: %6.2f%% (%s)\n", i + 1, newLabeled[i].label(), clusterAccuracy * 100, makeLetterGrade((int) (clusterAccuracy * 100)));
             totalAccuracy += clusterAccuracy;
         }
         totalAccuracy = (totalAccuracy / processedCentroids.length) * 100;
         System.out.printf("\nOverall Accuracy: %.2f%% (%s)\n", totalAccuracy, makeLetterGrade((int) totalAccuracy));
 		System.out.printf("Average time per iteration: ~%s\nTotal time: %s\n", formatTime(avg), formatTime(total));
-        final int targetClusterIndex = Math.abs(findClusterWithMostLabel(clusters, 1));
+        final int targetClusterIndex = Math.abs(findClusterWithMostLabel(items, clusters, 1));
 		executor.submit(() -> {
 			try {
 				System.out.println("\nExporting data to files...");
-				exportCentroidImagesAndLabels(processedCentroids);
-				exportClusterImages(clusters);
+				exportClusters(items, labels, processedCentroids);
 				exportIncorrectImagesAndLabels(items, labels, newLabeled);
 				System.out.println("\nFile export complete!");
 			} catch (IOException e) {
 				System.err.println("Error exporting data: " + e.getMessage());
 			}
 		});
-		final Viewer viewer = new Viewer(clusters[targetClusterIndex].toArray(new Image[0]), "Cluster #" + ((int) targetClusterIndex + 1), 4, true);
+		final Viewer viewer = new Viewer(clusters.stream(targetClusterIndex).mapToObj(items::image).toArray(Image[]::new), "Cluster #" + ((int) targetClusterIndex + 1), 4, true);
 		viewer.displayAll(10);
     }
-    public static void exportCentroidImagesAndLabels(final Image[] centroids) throws IOException {
-		try (final BufferedWriter imageWriter = new BufferedWriter(new FileWriter("centroid-images"));
-		final BufferedWriter labelWriter = new BufferedWriter(new FileWriter("centroid-labels"))) {
-            for (final Image centroid : centroids) {
-                imageWriter.write(centroid.toString() + "\n");
-                labelWriter.write(centroid.label() + "\n");
-            }
-        }
+    public static void exportClusters(final Dataset items, final int[] labels, final Image[] centroids) throws IOException {
+        // Writes clusters-images/-labels (sorted by cluster), clusters-index, clusters-assignments
+        // and clusters-centroids-images/-labels; see ClusterFile
+        ClusterFile.write("clusters", items, labels, centroids);
     }
-    public static void exportClusterImages(final ConcurrentLinkedQueue<Image>[] clusters) throws IOException {
-        for (int i = 0; i < clusters.length; i++) {
-            try (final BufferedWriter writer = new BufferedWriter(new FileWriter(String.format("cluster%02d-images", i + 1)))) {
-                for (final Image image : clusters[i]) {
-                    writer.write(image.toString() + "\n");
-                }
-            }
-        }
-    }
-    public static void exportIncorrectImagesAndLabels(final Image[] images, final int[] labels, final Image[] newLabeled) throws IOException {
-        try (final BufferedWriter imageWriter = new BufferedWriter(new FileWriter("incorrect-images"));
-             final BufferedWriter labelWriter = new BufferedWriter(new FileWriter("incorrect-labels"))) {
-            for (int i = 0; i < images.length; i++) {
-                if (images[i].label() != newLabeled[labels[i]].label()) {
-                    imageWriter.write(images[i].toString() + "\n");
-                    labelWriter.write(images[i].label() + "\n");
+    public static void exportIncorrectImagesAndLabels(final Dataset images, final int[] labels, final Image[] newLabeled) throws IOException {
+        try (final IdxWriter writer = new IdxWriter("incorrect-images", "incorrect-labels")) {
+            for (int i = 0; i < images.size(); i++) {
+                if (labels[i] >= 0 && images.label(i) != newLabeled[labels[i]].label()) {
+                    writer.write(images.image(i));
                 }
             }
+            writer.commit();
         }
     }
     public static String formatTime(final long ms) {
@@ -302,29 +735,74 @@ public class Final {
         final int percentage = (int) ((double) current / total * 100);
         System.out.printf("] %d%% (Stepped in %s, Change: %.2f%%)", percentage, formatTime(lastTime), changePercentage * 100);
     }
-    public static Image[] preprocessImages(final Image[] images) {
-        return Arrays.stream(images).parallel().map(image -> {
-            final byte[][] pixels = image.pixels();
-            // Step 1: Noise Reduction
-            final byte[][] denoisedPixels = new byte[image.rows()][image.columns()];
-			int sum, value;
-			for (int i = 1; i < image.rows() - 1; i++) {
-				for (int j = 1; j < image.columns() - 1; j++) {
-					sum = 0;
-					for (int ki = -1; ki <= 1; ki++) for (int kj = -1; kj <= 1; kj++) sum += pixels[i + ki][j + kj] & 0xFF;
-					denoisedPixels[i][j] = (byte) (sum / 9);
-				}
+    public static Dataset allocate(final int[] labels, final int[] ids, final int rows, final int columns) throws IOException {
+        switch (STORAGE) {
+            case "heap": return new Dataset(new byte[Math.multiplyExact(labels.length, rows * columns)], labels, ids, rows, columns);
+            case "direct": return Dataset.allocateDirect(labels, ids, rows, columns);
+            default: return Dataset.allocateMapped(STORAGE, labels, ids, rows, columns);
+        }
+    }
+    public static void preprocessImage(final byte[] pixels, final byte[] processedPixels, final int rows, final int columns) {
+        final int length = rows * columns;
+        // Step 1: Noise Reduction
+        final byte[] denoisedPixels = new byte[length];
+		int sum, value;
+		for (int i = 1; i < rows - 1; i++) {
+			for (int j = 1; j < columns - 1; j++) {
+				sum = 0;
+				for (int ki = -1; ki <= 1; ki++) for (int kj = -1; kj <= 1; kj++) sum += pixels[(i + ki) * columns + j + kj] & 0xFF;
+				denoisedPixels[i * columns + j] = (byte) (sum / 9);
 			}
-            // Step 2: Contrast Enhancement
-            for (int i = 0; i < image.rows(); i++) {
-                for (int j = 0; j < image.columns(); j++) {
-                    value = pixels[i][j] & 0xFF;
-                    value = Math.min(Math.max((int) (value * 1.2), 0), 255);
-                    pixels[i][j] = (byte) value;
-                }
-            }
-            return new Image(pixels, image.label(), image.id());
-        }).toArray(Image[]::new);
+		}
+        // Step 2: Contrast Enhancement
+        for (int i = 0; i < length; i++) {
+            value = pixels[i] & 0xFF;
+            value = Math.min(Math.max((int) (value * CONTRAST), 0), 255);
+            processedPixels[i] = (byte) value;
+        }
+    }
+    public static Dataset preprocessImages(final Dataset images) throws IOException {
+        final int rows = images.rows(), columns = images.columns(), length = images.length();
+        final Dataset processed = allocate(images.labels().clone(), images.ids().clone(), rows, columns);
+        IntStream.range(0, images.size()).parallel().forEach(image -> {
+            final byte[] processedPixels = new byte[length];
+            preprocessImage(images.read(image, new byte[length]), processedPixels, rows, columns);
+            processed.write(image, processedPixels);
+        });
+        return processed;
+    }
+    public static Dataset preprocessImages(final String imageFilename, final String labelFilename) throws IOException {
+        // Streams the files in parallel batches straight into the preprocessed data set;
+        // gzipped files cannot be split, so they are inflated first and processed in parallel
+        if (PrefetchInputStream.isGzip(imageFilename)) return preprocessImages(Image.readDataset(imageFilename, labelFilename));
+        try (final ImageSpliterator input = ImageSpliterator.open(imageFilename, labelFilename)) {
+            final int size = (int) input.estimateSize(), rows = input.rows(), columns = input.columns(), firstId = input.firstId();
+            final int[] labels = new int[size], ids = new int[size];
+            final Dataset processed = allocate(labels, ids, rows, columns);
+            StreamSupport.stream(input, true).forEach(image -> {
+                final int index = image.id() - firstId;
+                final byte[] processedPixels = new byte[rows * columns];
+                preprocessImage(image.copy(), processedPixels, rows, columns);
+                processed.write(index, processedPixels);
+                labels[index] = image.label();
+                ids[index] = image.id();
+            });
+            return processed;
+        }
+    }
+    public static Dataset loadImages(final String imageFilename, final String labelFilename) throws IOException {
+        // Preprocessed images from the cache if these files were preprocessed the same way before, otherwise preprocesses them (and caches the result)
+        if (CACHE == null) return preprocessImages(imageFilename, labelFilename);
+        final DatasetCache cache = new DatasetCache(CACHE);
+        final String key = cache.key(imageFilename, labelFilename, "preprocess v" + PREPROCESS_VERSION + " contrast=" + CONTRAST);
+        final Dataset cached = cache.get(key);
+        if (cached != null) {
+            System.out.printf("Using preprocessed images from %s\n\n", CACHE);
+            return cached;
+        }
+        final Dataset processed = preprocessImages(imageFilename, labelFilename);
+        cache.put(key, processed);
+        return processed;
     }
     public static Image[] postProcessImages(final Image[] images) {
         return Arrays.stream(images).parallel().map(image -> {
@@ -365,7 +843,36 @@ public class Final {
     public static void printBanner() {
         System.out.print("            _ _         ___         _   \n" + "  /\\  /\\___| | | __ _  / __\\_ _ ___| |_ \n" + " / /_/ / _ \\ | |/ _` |/ _\\/ _` / __| __|\n" + "/ __  /  __/ | | (_| / / | (_| \\__ \\ |_ \n" + "\\/ /_/ \\___|_|_|\\__,_\\/   \\__,_|___/\\__|\n" + "                                        \n\nBy Owen G & Peter Z (2024)\n\n");
     }
-    public static void parseArguments(final String[] args) {
+    private static String choice(final String option, final String value, final String... allowed) {
+        // The value of an option that takes one of a few words, which must be one of them
+        if (Arrays.asList(allowed).contains(value)) return value;
+        throw new IllegalArgumentException("Unknown " + option + ": " + value + " (expected " + String.join(", ", allowed) + ")");
+    }
+    public static void parseArguments(final String[] options) {
+        final List<String> positional = new ArrayList<>();
+        for (int i = 0; i < options.length; i++) {
+            switch (options[i]) {
+                case "-storage": STORAGE = options[++i]; break;
+                case "-cache": CACHE = options[++i]; break;
+                case "-nocache": CACHE = null; break;
+                case "-verify": VERIFY = true; break;
+                case "-sparse": SPARSE = choice("-sparse", options[++i], "auto", "on", "off"); break;
+                case "-bounds": BOUNDS = options[++i]; break;
+                case "-minibatch": BATCH_SIZE = Integer.parseInt(options[++i]); break;
+                case "-batches": BATCHES = Integer.parseInt(options[++i]); break;
+                case "-nofinalpass": FINAL_PASS = false; break;
+                case "-compare": COMPARE = true; break;
+                case "-multires": MULTIRESOLUTION = true; break;
+                case "-pca": COMPONENTS = Integer.parseInt(options[++i]); break;
+                case "-init": INITIALIZATION = choice("-init", options[++i], "kmeans++", "kmeans||"); break;
+                case "-distance": DISTANCE = DistanceKernel.forName(options[++i]); break;
+                case "-binary": BINARY_THRESHOLD = Integer.parseInt(options[++i]); break;
+                case "-bitdistance": BINARY_DISTANCE = options[++i]; break;
+                default: positional.add(options[i]);
+            }
+        }
+        if ((COMPONENTS > 0 ? 1 : 0) + (BATCH_SIZE > 0 ? 1 : 0) + (MULTIRESOLUTION ? 1 : 0) + (BINARY_THRESHOLD > 0 ? 1 : 0) > 1) throw new IllegalArgumentException("Only one of -pca, -minibatch, -multires and -binary can be given");
+        final String[] args = positional.toArray(new String[0]);
         if (args.length > 0) {
             if (args.length == 1) {
                 System.out.print("Enter K: ");
@@ -389,11 +896,10 @@ public class Final {
     public static void main(final String[] args) throws IOException {
         printBanner();
         parseArguments(args);
-        if (DEBUG) System.out.println("Loading MNIST dataset...");
-        Image[] images = Image.read("./MNIST/train-images", "./MNIST/train-labels");
-        if (DEBUG) System.out.println("MNIST dataset loaded");
-        if (DEBUG) System.out.println("Preprocessing images...");
-        images = preprocessImages(images);
+        if (DEBUG) System.out.println("Loading and preprocessing MNIST dataset...");
+        if (!STORAGE.equals("heap")) System.out.printf("Keeping pixels off-heap (%s)\n\n", STORAGE);
+        if (DISTANCE != DistanceKernel.COSINE) System.out.printf("Clustering by %s distance\n\n", DISTANCE.name());
+        final Dataset images = loadImages("./MNIST/train-images", "./MNIST/train-labels");
         if (DEBUG) System.out.println("Images preprocessed");
         System.out.println("Running K-Means algorithm with K = " + K + " clusters and (up to) " + MAX_ITERATIONS + " iterations...\n");
 		kMeans(images, K);
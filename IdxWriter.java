@@ -0,0 +1,192 @@
+// Owen Gregson, Peter Zhao
+// Algorithms
+// Final Project
+// May 18, 2024
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+public class IdxWriter implements Closeable {
+
+    // Writes an image file and/or a label file in IDX format.  Records are written
+    // with gathering channel writes (whole images, or whole data set segments, at a
+    // time) into temporary files next to the targets.  commit() fills in the headers
+    // and atomically renames the temporary files over the targets; closing a writer
+    // that was not committed deletes them, so a half-written data set is never left
+    // behind.  Typical use:
+    //
+    //     try (IdxWriter writer = new IdxWriter("out-images", "out-labels")) {
+    //         writer.write(images);
+    //         writer.commit();
+    //     }
+
+    private static final int GATHER = 1024;          // Image records per gathering write
+    private static final int LABEL_BUFFER = 1 << 16; // Labels per write
+
+    private final Path imageTarget;         // The image file to produce (null if none)
+    private final Path labelTarget;         // The label file to produce (null if none)
+    private Path imageTemp;                 // Temporary file holding the images until commit
+    private Path labelTemp;                 // Temporary file holding the labels until commit
+    private FileChannel images;
+    private FileChannel labels;
+
+    private final ByteBuffer[] pending = new ByteBuffer[GATHER];
+    private int pendingCount = 0;
+    private final ByteBuffer labelBuffer = ByteBuffer.allocate(LABEL_BUFFER);
+
+    private int count = 0;                  // Number of images written so far
+    private int rows = 0;                   // Rows per image (set by the first image)
+    private int columns = 0;                // Columns per image (set by the first image)
+    private boolean committed = false;
+
+    public IdxWriter(String imageFilename, String labelFilename) throws IOException {
+        // Either file name may be empty to skip that file
+        this.imageTarget = imageFilename.length() > 0 ? Paths.get(imageFilename).toAbsolutePath() : null;
+        this.labelTarget = labelFilename.length() > 0 ? Paths.get(labelFilename).toAbsolutePath() : null;
+        try {
+            if (this.imageTarget != null) {
+                this.imageTemp = temporary(this.imageTarget);
+                this.images = FileChannel.open(this.imageTemp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                this.images.position(16);
+            }
+            if (this.labelTarget != null) {
+                this.labelTemp = temporary(this.labelTarget);
+                this.labels = FileChannel.open(this.labelTemp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                this.labels.position(8);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private static Path temporary(Path target) {
+        // In the target's directory, so the final rename stays on one file system
+        return target.resolveSibling(target.getFileName() + "." + Long.toHexString(System.nanoTime()) + ".tmp");
+    }
+
+    private void shape(int rows, int columns) {
+        if (this.count == 0) {
+            this.rows = rows;
+            this.columns = columns;
+        } else if (rows != this.rows || columns != this.columns) {
+            throw new IllegalArgumentException("Image size " + rows + "x" + columns + " (expected " + this.rows + "x" + this.columns + ")");
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer[] buffers, int count) throws IOException {
+        // Gathering write of buffers[0..count), repeated until everything is written
+        int first = 0;
+        while (first < count) {
+            channel.write(buffers, first, count - first);
+            while (first < count && !buffers[first].hasRemaining()) first++;
+        }
+    }
+
+    private void flush() throws IOException {
+        if (this.images != null && this.pendingCount > 0) {
+            write(this.images, this.pending, this.pendingCount);
+        }
+        Arrays.fill(this.pending, 0, this.pendingCount, null);
+        this.pendingCount = 0;
+        if (this.labels != null && this.labelBuffer.position() > 0) {
+            this.labelBuffer.flip();
+            write(this.labels, new ByteBuffer[] { this.labelBuffer }, 1);
+        }
+        this.labelBuffer.clear();
+    }
+
+    public void write(Image image) throws IOException {
+        shape(image.rows(), image.columns());
+        if (this.pendingCount == GATHER || !this.labelBuffer.hasRemaining()) flush();
+        this.pending[this.pendingCount++] = image.slice();
+        this.labelBuffer.put((byte) image.label());
+        this.count++;
+    }
+
+    public void write(Image[] images) throws IOException {
+        for (Image image : images) {
+            write(image);
+        }
+    }
+
+    public void write(Dataset dataset) throws IOException {
+        // The whole pixel block is written in one gathering write of its segments
+        if (dataset.size() == 0) return;
+        shape(dataset.rows(), dataset.columns());
+        flush();
+        if (this.images != null) {
+            ByteBuffer[] segments = dataset.buffers();
+            write(this.images, segments, segments.length);
+        }
+        for (int i = 0; i < dataset.size(); i++) {
+            if (!this.labelBuffer.hasRemaining()) flush();
+            this.labelBuffer.put((byte) dataset.label(i));
+        }
+        this.count += dataset.size();
+    }
+
+    public void commit() throws IOException {
+        // Completes the headers, syncs and renames the files into place
+        flush();
+        if (this.images != null) {
+            ByteBuffer header = ByteBuffer.allocate(16);
+            header.putInt(Image.ImageFileHeader.MAGIC).putInt(this.count).putInt(this.rows).putInt(this.columns).flip();
+            this.images.write(header, 0);
+            this.images.force(true);
+            this.images.close();
+            move(this.imageTemp, this.imageTarget);
+        }
+        if (this.labels != null) {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putInt(Image.LabelFileHeader.MAGIC).putInt(this.count).flip();
+            this.labels.write(header, 0);
+            this.labels.force(true);
+            this.labels.close();
+            move(this.labelTemp, this.labelTarget);
+        }
+        this.committed = true;
+    }
+
+    public static void writeFile(String filename, ByteBuffer... buffers) throws IOException {
+        // Writes a small file from buffers in one gathering write, with the same
+        // write-then-rename guarantee as the image and label files
+        Path target = Paths.get(filename).toAbsolutePath();
+        Path temp = temporary(target);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            write(channel, buffers, buffers.length);
+            channel.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        move(temp, target);
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Discards everything written unless commit() succeeded
+        if (this.committed) return;
+        if (this.images != null) this.images.close();
+        if (this.labels != null) this.labels.close();
+        if (this.imageTemp != null) Files.deleteIfExists(this.imageTemp);
+        if (this.labelTemp != null) Files.deleteIfExists(this.labelTemp);
+    }
+}
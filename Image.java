@@ -3,12 +3,14 @@
 // Final Project
 // May 18, 2024
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.File;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
 
 public class Image {
 
@@ -22,7 +24,8 @@ public class Image {
     private int label;         // A label (typically the digit) for this image
     private int rows;          // Number of rows in this image
     private int columns;       // Number of columns in this image
-    private byte[][] pixels;   // The pixels (grayscale) for this image
+    private ByteBuffer data;   // The pixels (grayscale, row-major); may be shared with a Dataset
+    private int offset;        // Index of this image's first pixel within data
 
     public Image(int rows, int columns, int label, int id) {
         if (rows <= 0) {
@@ -36,7 +39,8 @@ public class Image {
         this.label = label;
         this.rows = rows;
         this.columns = columns;
-        this.pixels = new byte[rows][columns];
+        this.data = ByteBuffer.wrap(new byte[rows * columns]);
+        this.offset = 0;
     }
 
     public Image(int rows, int columns, int label) {
@@ -49,11 +53,10 @@ public class Image {
     }
 
     public Image(byte[][] pixels, int label, int id) {
-        this.id = id;
-        this.label = label;
-        this.rows = pixels.length;
-        this.columns = pixels[0].length;
-        this.pixels = pixels;
+        this(pixels.length, pixels[0].length, label, id);
+        for (int row = 0; row < this.rows; row++) {
+            this.data.put(row * this.columns, pixels[row], 0, this.columns);
+        }
     }
 
     public Image(byte[][] pixels, int label) {
@@ -64,6 +67,28 @@ public class Image {
         this(pixels, UNKNOWN);
     }
 
+    public Image(ByteBuffer data, int offset, int rows, int columns, int label, int id) {
+        // A view of rows x columns pixels stored contiguously in data (no copy is made);
+        // data may be a heap, memory-mapped or off-heap buffer
+        this.id = id;
+        this.label = label;
+        this.rows = rows;
+        this.columns = columns;
+        this.data = data;
+        this.offset = offset;
+    }
+
+    public Image(byte[] data, int offset, int rows, int columns, int label, int id) {
+        this(ByteBuffer.wrap(data), offset, rows, columns, label, id);
+    }
+
+    static synchronized int reserveIds(int n) {
+        // Hands out a block of n sequential identifiers (used when loading a Dataset)
+        int first = Image.count;
+        Image.count += n;
+        return first;
+    }
+
     public int id() {
         return this.id;
     }
@@ -89,19 +114,52 @@ public class Image {
     }
 
     public byte[][] pixels() {
-        return this.pixels;
+        // A copy of the pixels as one array per row.  Images used to hand out their
+        // own arrays; now changes to the copy do not reach the image (use set)
+        byte[][] result = new byte[this.rows][this.columns];
+        for (int row = 0; row < this.rows; row++) {
+            this.data.get(this.offset + row * this.columns, result[row], 0, this.columns);
+        }
+        return result;
+    }
+
+    public byte[] copy(byte[] destination, int destinationOffset) {
+        // Copies the pixels (row-major) into destination and returns it
+        this.data.get(this.offset, destination, destinationOffset, this.rows * this.columns);
+        return destination;
+    }
+
+    public byte[] copy() {
+        return copy(new byte[this.rows * this.columns], 0);
+    }
+
+    public ByteBuffer buffer() {
+        return this.data;
+    }
+
+    public ByteBuffer slice() {
+        // The pixels of this image as a buffer of their own (sharing the same storage)
+        return this.data.slice(this.offset, this.rows * this.columns);
+    }
+
+    public int offset() {
+        return this.offset;
     }
 
     public int get(int row, int column) {
-        int value = this.pixels[row][column];
-        return (value < 0) ? value + 256 : value;
+        return this.data.get(this.offset + row * this.columns + column) & 0xFF;
     }
 
     public void set(int row, int column, int value) {
+        // Changes a pixel in the image's storage, which may be shared with a Dataset.
+        // Images read from a memory-mapped file are read-only views and cannot be set
         if (value < 0 || value > 255) {
             throw new IllegalArgumentException("Pixel: " + value);
         }
-        this.pixels[row][column] = (byte) value;
+        if (this.data.isReadOnly()) {
+            throw new UnsupportedOperationException("Image " + this.id + " is a read-only view of a mapped file; set pixels on a copy");
+        }
+        this.data.put(this.offset + row * this.columns + column, (byte) value);
     }
 
     public boolean equals(Image other) {
@@ -109,10 +167,9 @@ public class Image {
         if (this.columns != other.columns) return false;
         if (this.label != other.label) return false;
 
-        for (int row = 0; row < this.rows; row++) {
-            for (int col = 0; col < this.columns; col++) {
-                if (this.pixels[row][col] != other.pixels[row][col]) return false;
-            }
+        int length = this.rows * this.columns;
+        for (int i = 0; i < length; i++) {
+            if (this.data.get(this.offset + i) != other.data.get(other.offset + i)) return false;
         }
         return true;
     }
@@ -126,10 +183,9 @@ public class Image {
     @Override
     public int hashCode() {
         int hash = this.rows * this.columns;
-        for (int row = 0; row < this.rows; row++) {
-            for (int col = 0; col < this.columns; col++) {
-                hash = 257 * hash + this.pixels[row][col];
-            }
+        int length = this.rows * this.columns;
+        for (int i = 0; i < length; i++) {
+            hash = 257 * hash + this.data.get(this.offset + i);
         }
         return this.label * hash;
     }
@@ -139,20 +195,13 @@ public class Image {
     public String toString() {
         // The numerical pixel values are formatted for each row so that
         // the columns are all aligned; newlines separate the rows.
-        String result = "";
-        String lineSeparator = "";
-        String itemSeparator = "";
-        for (int row = 0; row < this.rows; row++) {
-            result += lineSeparator;
-            itemSeparator = " ";
-            for (int col = 0; col < this.columns; col++) {
-                result += itemSeparator;
-                result += String.format("%3s", get(row, col));
-                itemSeparator = " ";
-            }
-            lineSeparator = "\n";
+        StringBuilder result = new StringBuilder(this.rows * (4 * this.columns + 1));
+        try {
+            new TextEncoder().write(this, result);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);   // StringBuilder does not throw
         }
-        return result;
+        return result.toString();
     }
 
     public String toString(int threshold) {
@@ -160,18 +209,13 @@ public class Image {
         // This image contains newlines ... and is meant to be printed
         // The threshold parameter determins the level at which pixels are
         // considered to be black (pixels < threshold are white)
-        String result = "";
-        String lineSeparator = "";
-        String itemSeparator = "";
-        for (int row = 0; row < this.rows; row++) {
-            result += lineSeparator;
-            itemSeparator = " ";
-            for (int col = 0; col < this.columns; col++) {
-                result += (get(row, col) >= threshold) ? '*' : ' ';
-            }
-            lineSeparator = "\n";
+        StringBuilder result = new StringBuilder(this.rows * (this.columns + 1));
+        try {
+            new TextEncoder().write(this, threshold, result);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);   // StringBuilder does not throw
         }
-        return result;
+        return result.toString();
     }
 
     public static int rows(Image[] images) {
@@ -190,18 +234,7 @@ public class Image {
         }
     }
 
-    private static int readInt(BufferedInputStream input) throws IOException {
-        // Reads an integer as four bytes (MSB first)
-        int result = 0;
-        for(int i = 0; i < 4; i++) {
-            int value = input.read();
-            result = 256 * result + value;
-        }
-
-        return result;
-    }
-
-    private static class ImageFileHeader {
+    static class ImageFileHeader {
         public static final int MAGIC = 2051;
         public int magic;
         public int count;
@@ -209,12 +242,16 @@ public class Image {
         public int cols;
     }
 
-    private static ImageFileHeader readImageFileHeader(BufferedInputStream input) throws IOException {
+    static ImageFileHeader readImageFileHeader(ByteBuffer input) throws IOException {
+        // Checks the first 16 bytes of an image file (integers are big-endian)
+        if (input.limit() < 16) {
+            throw new Image.FileFormatException("Truncated header (images)");
+        }
         ImageFileHeader header = new ImageFileHeader();
-        header.magic = readInt(input);
-        header.count = readInt(input);
-        header.rows = readInt(input);
-        header.cols = readInt(input);
+        header.magic = input.getInt(0);
+        header.count = input.getInt(4);
+        header.rows = input.getInt(8);
+        header.cols = input.getInt(12);
 
         if (header.magic != ImageFileHeader.MAGIC) {
             throw new Image.FileFormatException("Bad magic (images): " + header.magic);
@@ -228,86 +265,82 @@ public class Image {
         return header;
     }
 
-    private static Image readImage(BufferedInputStream input, int rows, int columns) throws IOException {
-        byte[][] pixels = new byte[rows][columns];
-        for (int row = 0; row < rows; row++) {
-            for (int column = 0; column < columns; column++) {
-                pixels[row][column] = (byte) input.read();
+    static ByteBuffer readFully(InputStream input, int count) throws IOException {
+        byte[] bytes = input.readNBytes(count);
+        if (bytes.length < count) {
+            throw new Image.FileFormatException("Unexpected end of file");
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static Dataset readGzipDataset(String filename) throws IOException {
+        // Gzip files are inflated (on a prefetch thread) straight into heap segments
+        try (InputStream input = PrefetchInputStream.openGzip(filename)) {
+            ImageFileHeader header = readImageFileHeader(readFully(input, 16));
+            int length = Math.multiplyExact(header.rows, header.cols);
+            int perSegment = Dataset.perSegment(header.count, length);
+            ByteBuffer[] segments = new ByteBuffer[(header.count + perSegment - 1) / perSegment];
+            for (int s = 0; s < segments.length; s++) {
+                int images = Math.min(perSegment, header.count - s * perSegment);
+                segments[s] = readFully(input, images * length);
             }
+            return new Dataset(segments, perSegment, header.count, header.rows, header.cols);
         }
-        return new Image(pixels);
     }
 
-    private static Image[] readImages(BufferedInputStream input, int rows, int columns, int count) throws IOException {
-        Image[] images = new Image[count];
-        for (int i = 0; i < count; i++) {
-            images[i] = readImage(input, rows, columns);
+    public static Dataset readDataset(String filename) throws IOException {
+        // Maps the image file into memory; images are views of the mapped region and
+        // are paged in on first use.  Files over 2GB are mapped as several segments,
+        // each holding a whole number of images.  Gzipped files are decompressed.
+        if (PrefetchInputStream.isGzip(filename)) {
+            return readGzipDataset(filename);
         }
-        return images;
-    }
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ImageFileHeader header = readImageFileHeader(channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(16, channel.size())));
+            int length = Math.multiplyExact(header.rows, header.cols);
+            long expected = 16 + (long) header.count * length;
+            if (channel.size() < expected) {
+                throw new Image.FileFormatException("Truncated image data: " + channel.size() + " bytes, expected " + expected);
+            }
 
-    public static Image[] readImages(String filename) throws IOException {
-        BufferedInputStream input = new BufferedInputStream(new FileInputStream(new File(filename)));
-        ImageFileHeader header = readImageFileHeader(input);
-        return readImages(input, header.rows, header.cols, header.count);
-    }
-
-
-    private static void writeInt(BufferedOutputStream output, int value) throws IOException {
-        // Writes an integer as 4 bytes (MSB first)
-        int b1 = (value >> 24) & 0xFF;
-        int b2 = (value >> 16) & 0xFF;
-        int b3 = (value >> 8) & 0xFF;
-        int b4 = value & 0xFF;
-        output.write(b1);
-        output.write(b2);
-        output.write(b3);
-        output.write(b4);
-    }
-
-    private static void writeImageFileHeader(BufferedOutputStream output, Image[] images) throws IOException {
-        int count = images.length;
-        int rows = count > 0 ? images[0].rows() : 0;
-        int cols = count > 0 ? images[0].columns() : 0;
-        writeInt(output, ImageFileHeader.MAGIC);
-        writeInt(output, count);
-        writeInt(output, rows);
-        writeInt(output, cols);
-    }
-
-    private static void writeImage(BufferedOutputStream output, Image image) throws IOException {
-        for (int row = 0; row < image.rows(); row++) {
-            for (int column = 0; column < image.columns(); column++) {
-                output.write(image.get(row, column));
+            int perSegment = Dataset.perSegment(header.count, length);
+            ByteBuffer[] segments = new ByteBuffer[(header.count + perSegment - 1) / perSegment];
+            for (int s = 0; s < segments.length; s++) {
+                int images = Math.min(perSegment, header.count - s * perSegment);
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, 16 + (long) s * perSegment * length, (long) images * length);
             }
+            return new Dataset(segments, perSegment, header.count, header.rows, header.cols);
         }
     }
 
-    private static void writeImages(BufferedOutputStream output, Image[] images) throws IOException {
-        for (Image image : images) {
-            writeImage(output, image);
-        }
+    public static Image[] readImages(String filename) throws IOException {
+        return readDataset(filename).images();
     }
 
+
     public static void writeImages(Image[] images, String filename) throws IOException {
-        BufferedOutputStream output = new BufferedOutputStream(new FileOutputStream(new File(filename)));
-        writeImageFileHeader(output, images);
-        writeImages(output, images);
-        output.close();
+        try (IdxWriter writer = new IdxWriter(filename, "")) {
+            writer.write(images);
+            writer.commit();
+        }
     }
 
     // -- Label File Reader/Writer ---------------------------------------------------------------
 
-    private static class LabelFileHeader {
+    static class LabelFileHeader {
         public static final int MAGIC = 2049;
         public int magic;
         public int count;
     }
 
-    private static LabelFileHeader readLabelFileHeader(BufferedInputStream input) throws IOException {
+    static LabelFileHeader readLabelFileHeader(ByteBuffer input) throws IOException {
+        // Checks the first 8 bytes of a label file (integers are big-endian)
+        if (input.limit() < 8) {
+            throw new Image.FileFormatException("Truncated header (labels)");
+        }
         LabelFileHeader header = new LabelFileHeader();
-        header.magic = readInt(input);
-        header.count = readInt(input);
+        header.magic = input.getInt(0);
+        header.count = input.getInt(4);
 
         if (header.magic != LabelFileHeader.MAGIC) {
             throw new Image.FileFormatException("Bad magic (labels): " + header.magic);
@@ -317,50 +350,77 @@ public class Image {
         return header;
     }
 
-    private static int[] readLabels(BufferedInputStream input, int count) throws IOException {
-        int[] result = new int[count];
-        for (int i = 0; i < count; i++) {
-            result[i] = input.read();
-        }
-        return result;
-    }
-
     public static int[] readLabels(String filename) throws IOException {
-        BufferedInputStream input = new BufferedInputStream(new FileInputStream(new File(filename)));
-        LabelFileHeader header = readLabelFileHeader(input);
-        return readLabels(input, header.count);
-    }
-
-    private static void writeLabels(BufferedOutputStream output, Image[] images) throws IOException {
-        writeInt(output, LabelFileHeader.MAGIC);
-        writeInt(output, images.length);
-        for (int i = 0; i < images.length; i++) {
-            output.write(images[i].label());
+        if (PrefetchInputStream.isGzip(filename)) {
+            try (InputStream input = PrefetchInputStream.openGzip(filename)) {
+                LabelFileHeader header = readLabelFileHeader(readFully(input, 8));
+                ByteBuffer labels = readFully(input, header.count);
+                int[] result = new int[header.count];
+                for (int i = 0; i < header.count; i++) {
+                    result[i] = labels.get(i) & 0xFF;
+                }
+                return result;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ByteBuffer input = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            LabelFileHeader header = readLabelFileHeader(input);
+            if (input.limit() - 8 < header.count) {
+                throw new Image.FileFormatException("Truncated label data (expected " + header.count + " labels)");
+            }
+            int[] result = new int[header.count];
+            for (int i = 0; i < header.count; i++) {
+                result[i] = input.get(8 + i) & 0xFF;
+            }
+            return result;
         }
     }
 
     public static void writeLabels(Image[] images, String filename) throws IOException {
-        BufferedOutputStream output = new BufferedOutputStream(new FileOutputStream(new File(filename)));
-        writeLabels(output, images);
-        output.close();
+        try (IdxWriter writer = new IdxWriter("", filename)) {
+            writer.write(images);
+            writer.commit();
+        }
     }
 
 
-    public static Image[] read(String imageFilename, String labelFilename) throws IOException {
+    public static Dataset readDataset(String imageFilename, String labelFilename) throws IOException {
         // Reads an image file and optionally the associated labels
-        Image[] images = readImages(imageFilename);
+        Dataset dataset = readDataset(imageFilename);
         if (labelFilename.length() > 0) {
             int[] labels = readLabels(labelFilename);
-            assert (images.length == labels.length);
-            for (int i = 0; i < images.length; i++) {
-                images[i].label(labels[i]);
-            }
+            assert (dataset.size() == labels.length);
+            System.arraycopy(labels, 0, dataset.labels(), 0, Math.min(labels.length, dataset.size()));
         }
-        return images;
+        return dataset;
+    }
+
+    public static Image[] read(String imageFilename, String labelFilename) throws IOException {
+        return readDataset(imageFilename, labelFilename).images();
+    }
+
+    public static Stream<Image> stream(String imageFilename, String labelFilename) throws IOException {
+        // Decodes images (and optionally labels) a batch at a time, in constant memory;
+        // the stream may be made parallel and must be closed when done
+        return ImageSpliterator.stream(imageFilename, labelFilename);
+    }
+
+    public static Stream<Image> stream(String imageFilename, String labelFilename, int from, int to) throws IOException {
+        // Only images [from, to) of the file
+        return ImageSpliterator.stream(imageFilename, labelFilename, from, to);
     }
 
     public static void write(Image[] images, String imageFilename, String labelFilename) throws IOException {
-        writeImages(images, imageFilename);
-        writeLabels(images, labelFilename);
+        try (IdxWriter writer = new IdxWriter(imageFilename, labelFilename)) {
+            writer.write(images);
+            writer.commit();
+        }
+    }
+
+    public static void write(Dataset dataset, String imageFilename, String labelFilename) throws IOException {
+        try (IdxWriter writer = new IdxWriter(imageFilename, labelFilename)) {
+            writer.write(dataset);
+            writer.commit();
+        }
     }
 }
@@ -0,0 +1,275 @@
+// Owen Gregson, Peter Zhao
+// Algorithms
+// Final Project
+// May 18, 2024
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class ImageSpliterator implements Spliterator<Image>, Closeable {
+
+    // Decodes an image file (and optionally its label file) in batches of whole
+    // records, so only one batch per thread is held in memory and the first images
+    // are available as soon as the first batch has been read.  Splitting divides
+    // the remaining records by file offset; every split reads its own range of both
+    // files with positional reads on the shared channels.  Gzipped files can only be
+    // read in order, so they are decoded sequentially (on a prefetch thread) and are
+    // not split.
+
+    private static final int BATCH_BYTES = 1 << 20;
+
+    private interface Source extends Closeable {
+        void read(ByteBuffer buffer, long position) throws IOException;  // Fills buffer from position on
+        long size() throws IOException;                                  // Size of the file (if known)
+        boolean positional();                                            // Whether reads may come in any order
+    }
+
+    private static class ChannelSource implements Source {
+        private final FileChannel channel;
+
+        ChannelSource(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        public void read(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int count = this.channel.read(buffer, position);
+                if (count < 0) {
+                    throw new EOFException("Unexpected end of file");
+                }
+                position += count;
+            }
+        }
+
+        public long size() throws IOException {
+            return this.channel.size();
+        }
+
+        public boolean positional() {
+            return true;
+        }
+
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+
+    private static class StreamSource implements Source {
+        private final InputStream input;
+        private long position = 0;
+
+        StreamSource(InputStream input) {
+            this.input = input;
+        }
+
+        public void read(ByteBuffer buffer, long position) throws IOException {
+            if (position < this.position) {
+                throw new IllegalStateException("Out of order read at " + position + " (expected " + this.position + ")");
+            }
+            this.input.skipNBytes(position - this.position);
+            this.position = position;
+            int count = buffer.remaining();
+            if (this.input.readNBytes(buffer.array(), buffer.arrayOffset() + buffer.position(), count) < count) {
+                throw new EOFException("Unexpected end of file");
+            }
+            buffer.position(buffer.limit());
+            this.position += count;
+        }
+
+        public long size() {
+            return Long.MAX_VALUE;
+        }
+
+        public boolean positional() {
+            return false;
+        }
+
+        public void close() throws IOException {
+            this.input.close();
+        }
+    }
+
+    private static Source source(String filename) throws IOException {
+        if (PrefetchInputStream.isGzip(filename)) {
+            return new StreamSource(PrefetchInputStream.openGzip(filename));
+        }
+        return new ChannelSource(FileChannel.open(Paths.get(filename), StandardOpenOption.READ));
+    }
+
+    private final Source images;        // The image file (shared by all splits)
+    private final Source labels;        // The label file, or null if there are no labels
+    private final int rows;             // Number of rows in each image
+    private final int columns;          // Number of columns in each image
+    private final int length;           // Number of pixels in each image
+    private final int firstId;          // Identifier given to the first record of the file
+    private final int batch;            // Number of records decoded at a time
+
+    private int current;                // Next record to hand out
+    private int end;                    // One past the last record of this split
+    private int batchStart;             // First record held in pixels
+    private int batchEnd;               // One past the last record held in pixels
+    private ByteBuffer pixels;          // The pixels of the current batch
+    private byte[] batchLabels;         // The labels of the current batch
+
+    private ImageSpliterator(Source images, Source labels, int rows, int columns, int firstId, int from, int to) {
+        this.images = images;
+        this.labels = labels;
+        this.rows = rows;
+        this.columns = columns;
+        this.length = rows * columns;
+        this.firstId = firstId;
+        this.batch = Math.max(1, BATCH_BYTES / this.length);
+        this.current = from;
+        this.end = to;
+        this.batchStart = from;
+        this.batchEnd = from;
+    }
+
+    public static ImageSpliterator open(String imageFilename, String labelFilename) throws IOException {
+        return open(imageFilename, labelFilename, 0, Integer.MAX_VALUE);
+    }
+
+    public static ImageSpliterator open(String imageFilename, String labelFilename, int from, int to) throws IOException {
+        // Checks both headers; labelFilename may be empty if there is no label file.
+        // Only records [from, to) are read (to is capped at the number of images).
+        Source images = source(imageFilename);
+        Source labels = null;
+        try {
+            ByteBuffer header = ByteBuffer.allocate(16);
+            images.read(header, 0);
+            Image.ImageFileHeader imageHeader = Image.readImageFileHeader(header.flip());
+            if (images.size() < 16 + (long) imageHeader.count * imageHeader.rows * imageHeader.cols) {
+                throw new Image.FileFormatException("Truncated image data (expected " + imageHeader.count + " images)");
+            }
+
+            if (labelFilename.length() > 0) {
+                labels = source(labelFilename);
+                header = ByteBuffer.allocate(8);
+                labels.read(header, 0);
+                Image.LabelFileHeader labelHeader = Image.readLabelFileHeader(header.flip());
+                if (labelHeader.count < imageHeader.count || labels.size() < 8 + (long) imageHeader.count) {
+                    throw new Image.FileFormatException("Too few labels: " + labelHeader.count + " for " + imageHeader.count + " images");
+                }
+            }
+
+            to = Math.min(to, imageHeader.count);
+            if (from < 0 || from > to) {
+                throw new IllegalArgumentException("Invalid range: " + from + " to " + to);
+            }
+            int firstId = Image.reserveIds(imageHeader.count);
+            return new ImageSpliterator(images, labels, imageHeader.rows, imageHeader.cols, firstId, from, to);
+        } catch (IOException | RuntimeException e) {
+            images.close();
+            if (labels != null) labels.close();
+            throw e;
+        }
+    }
+
+    public static Stream<Image> stream(String imageFilename, String labelFilename) throws IOException {
+        return stream(imageFilename, labelFilename, 0, Integer.MAX_VALUE);
+    }
+
+    public static Stream<Image> stream(String imageFilename, String labelFilename, int from, int to) throws IOException {
+        // A sequential stream of the images in a file; closing the stream closes the files
+        ImageSpliterator spliterator = open(imageFilename, labelFilename, from, to);
+        return StreamSupport.stream(spliterator, false).onClose(spliterator::closeUnchecked);
+    }
+
+    private void fill() throws IOException {
+        int count = Math.min(this.batch, this.end - this.current);
+        this.pixels = ByteBuffer.allocate(count * this.length);
+        this.images.read(this.pixels, 16 + (long) this.current * this.length);
+        if (this.labels != null) {
+            this.batchLabels = new byte[count];
+            this.labels.read(ByteBuffer.wrap(this.batchLabels), 8 + (long) this.current);
+        }
+        this.batchStart = this.current;
+        this.batchEnd = this.current + count;
+    }
+
+    public int rows() {
+        return this.rows;
+    }
+
+    public int columns() {
+        return this.columns;
+    }
+
+    public int firstId() {
+        return this.firstId;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Image> action) {
+        if (this.current >= this.end) return false;
+        if (this.current >= this.batchEnd) {
+            try {
+                fill();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        int index = this.current - this.batchStart;
+        int label = this.labels != null ? this.batchLabels[index] & 0xFF : Image.UNKNOWN;
+        Image image = new Image(this.pixels, index * this.length, this.rows, this.columns, label, this.firstId + this.current);
+        this.current++;
+        action.accept(image);
+        return true;
+    }
+
+    @Override
+    public Spliterator<Image> trySplit() {
+        // Hands out the first half of the remaining records (in whole batches)
+        if (!this.images.positional() || (this.labels != null && !this.labels.positional())) return null;
+        int remaining = this.end - Math.max(this.current, this.batchEnd);
+        if (remaining < 2 * this.batch) return null;
+        int from = Math.max(this.current, this.batchEnd);
+        int middle = from + (remaining / 2 / this.batch) * this.batch;
+        ImageSpliterator prefix = new ImageSpliterator(this.images, this.labels, this.rows, this.columns, this.firstId, this.current, middle);
+        prefix.pixels = this.pixels;
+        prefix.batchLabels = this.batchLabels;
+        prefix.batchStart = this.batchStart;
+        prefix.batchEnd = this.batchEnd;
+        this.current = middle;
+        this.batchStart = middle;
+        this.batchEnd = middle;
+        this.pixels = null;
+        this.batchLabels = null;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return this.end - this.current;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.images.close();
+        if (this.labels != null) this.labels.close();
+    }
+
+    private void closeUnchecked() {
+        try {
+            close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+// Owen Gregson, Peter Zhao
+// Algorithms
+// Final Project
+// May 18, 2024
+
+public class Kernels {
+
+    // Inner loops of the distance computations.  Pixels are bytes, but a loop that
+    // widens two byte arrays and accumulates in double is not vectorized by the JIT;
+    // a plain int multiply-add reduction over two int arrays is (using whatever SIMD
+    // width the host supports: SSE, AVX2 or AVX-512).  So an item is widened to ints
+    // once and then compared with every centroid, which is also held as ints.
+    //
+    // Products of pixels are at most 255 * 255, so an int sum of up to BLOCK of them
+    // cannot overflow; longer vectors are summed block by block into a long.  The
+    // result is exact, and identical to the scalar reference version.  (Fixed-point
+    // centroids have larger values, and use smaller blocks; see block().)
+
+    private static final int BLOCK = 1 << 15;   // 32768 * 255 * 255 < 2^31
+
+    public static int[] widen(byte[] pixels, int[] destination) {
+        // Copies unsigned pixel values into destination and returns it
+        for (int i = 0; i < pixels.length; i++) {
+            destination[i] = pixels[i] & 0xFF;
+        }
+        return destination;
+    }
+
+    public static int[] widen(byte[] pixels) {
+        return widen(pixels, new int[pixels.length]);
+    }
+
+    public static int block(int maxA, int maxB) {
+        // The longest run of products a[i] * b[i] whose int sum cannot overflow
+        return (int) Math.max(1, Integer.MAX_VALUE / ((long) maxA * maxB));
+    }
+
+    public static long dotProduct(int[] a, int[] b) {
+        return dotProduct(a, b, BLOCK);
+    }
+
+    public static long dotProduct(int[] a, int[] b, int block) {
+        // Exact dot product of a and b, where no run of block products may overflow an int
+        long total = 0;
+        for (int start = 0; start < a.length; start += block) {
+            int end = Math.min(a.length, start + block);
+            int sum = 0;
+            for (int i = start; i < end; i++) {
+                sum += a[i] * b[i];
+            }
+            total += sum;
+        }
+        return total;
+    }
+
+    public static long squaredNorm(byte[] pixels) {
+        long sum = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            sum += (pixels[i] & 0xFF) * (pixels[i] & 0xFF);
+        }
+        return sum;
+    }
+
+    public static double dotProduct(byte[] a, byte[] b) {
+        // The scalar reference version
+        double dotProduct = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            dotProduct += (a[i] & 0xFF) * (b[i] & 0xFF);
+        }
+        return dotProduct;
+    }
+
+    public static long manhattan(int[] a, int shift, int[] b, int block) {
+        // Exact L1 distance between a * 2^shift and b, where no run of block absolute
+        // differences may overflow an int
+        long total = 0;
+        for (int start = 0; start < a.length; start += block) {
+            int end = Math.min(a.length, start + block);
+            int sum = 0;
+            for (int i = start; i < end; i++) {
+                sum += Math.abs((a[i] << shift) - b[i]);
+            }
+            total += sum;
+        }
+        return total;
+    }
+
+    // -- Reference Versions -----------------------------------------------------------
+    //
+    // Plain loops over an item's pixels and a centroid's pixel values.  Centroid
+    // values are fixed point (a few fractional bits), so every product and sum here
+    // is exact in double and these give exactly the same results as the integer
+    // kernels.
+
+    public static double dotProduct(byte[] a, double[] b) {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            sum += (a[i] & 0xFF) * b[i];
+        }
+        return sum;
+    }
+
+    public static double norm(double[] a) {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * a[i];
+        }
+        return Math.sqrt(sum);
+    }
+
+    public static double manhattan(byte[] a, double[] b) {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            sum += Math.abs((a[i] & 0xFF) - b[i]);
+        }
+        return sum;
+    }
+
+    public static double squaredEuclidean(byte[] a, double[] b) {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            double difference = (a[i] & 0xFF) - b[i];
+            sum += difference * difference;
+        }
+        return sum;
+    }
+
+    // -- Projected Items --------------------------------------------------------------
+    //
+    // Items given by their float coordinates along a few principal components (see
+    // Projection) against double centroids.  With a few dozen values per item these
+    // are cheap enough as plain loops.
+
+    public static double dotProduct(float[] a, double[] b) {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    public static double norm(float[] a) {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            sum += (double) a[i] * a[i];
+        }
+        return Math.sqrt(sum);
+    }
+
+    public static double manhattan(float[] a, double[] b) {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            sum += Math.abs(a[i] - b[i]);
+        }
+        return sum;
+    }
+
+    public static double squaredEuclidean(float[] a, double[] b) {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            double difference = a[i] - b[i];
+            sum += difference * difference;
+        }
+        return sum;
+    }
+}
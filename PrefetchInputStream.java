@@ -0,0 +1,144 @@
+// Owen Gregson, Peter Zhao
+// Algorithms
+// Final Project
+// May 18, 2024
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+public class PrefetchInputStream extends InputStream {
+
+    // Reads another stream (typically a GZIPInputStream) on a background thread,
+    // which fills a bounded ring of buffers while the caller consumes them; the
+    // caller only ever copies bytes, so decoding runs at close to the speed of
+    // the producer (e.g. single-core inflate).
+
+    private static final int BUFFERS = 8;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private static class Chunk {
+        final byte[] data;
+        int length;
+
+        Chunk(int size) {
+            this.data = new byte[size];
+        }
+    }
+
+    private static final Chunk END = new Chunk(0);
+
+    private final InputStream input;              // The stream being prefetched
+    private final BlockingQueue<Chunk> full;      // Chunks filled by the producer, in order
+    private final BlockingQueue<Chunk> free;      // Chunks consumed and ready to be refilled
+    private final Thread producer;
+    private volatile IOException failure;         // Set if the producer failed
+
+    private Chunk current = null;                 // The chunk being consumed
+    private int position = 0;                     // Next byte of current to hand out
+
+    public PrefetchInputStream(InputStream input, int buffers, int bufferSize) {
+        this.input = input;
+        this.full = new ArrayBlockingQueue<>(buffers + 1);
+        this.free = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; i++) {
+            this.free.add(new Chunk(bufferSize));
+        }
+        this.producer = new Thread(this::produce, "prefetch");
+        this.producer.setDaemon(true);
+        this.producer.start();
+    }
+
+    public PrefetchInputStream(InputStream input) {
+        this(input, BUFFERS, BUFFER_SIZE);
+    }
+
+    public static boolean isGzip(String filename) throws IOException {
+        // Gzip files start with the bytes 0x1f 0x8b
+        try (InputStream input = new FileInputStream(filename)) {
+            return input.read() == 0x1f && input.read() == 0x8b;
+        }
+    }
+
+    public static InputStream openGzip(String filename) throws IOException {
+        // A decompressed view of a gzip file, inflated ahead of the reader
+        return new PrefetchInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(filename), 1 << 16), 1 << 16));
+    }
+
+    private void produce() {
+        try {
+            while (true) {
+                Chunk chunk = this.free.take();
+                chunk.length = this.input.readNBytes(chunk.data, 0, chunk.data.length);
+                if (chunk.length > 0) this.full.put(chunk);
+                if (chunk.length < chunk.data.length) break;
+            }
+        } catch (InterruptedException e) {
+            // Closed by the reader
+        } catch (IOException e) {
+            this.failure = e;
+        } catch (Throwable e) {
+            this.failure = new IOException("Prefetching failed", e);
+        } finally {
+            // Always ends the stream, so a reader waiting for the next chunk wakes up
+            this.full.offer(END);
+        }
+    }
+
+    private boolean next() throws IOException {
+        // Moves on to the next filled chunk; false at the end of the stream
+        if (this.current == END) return false;
+        if (this.current != null) this.free.offer(this.current);
+        try {
+            this.current = this.full.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for data");
+        }
+        this.position = 0;
+        if (this.current == END) {
+            if (this.failure != null) throw this.failure;
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (this.current == null || this.position == this.current.length) {
+            if (!next()) return -1;
+        }
+        return this.current.data[this.position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) return 0;
+        while (this.current == null || this.position == this.current.length) {
+            if (!next()) return -1;
+        }
+        int count = Math.min(length, this.current.length - this.position);
+        System.arraycopy(this.current.data, this.position, buffer, offset, count);
+        this.position += count;
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The producer is stopped before the input is closed under it (a GZIPInputStream
+        // closed in the middle of a read fails with a NullPointerException)
+        this.producer.interrupt();
+        try {
+            this.producer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while stopping the prefetch thread");
+        } finally {
+            this.input.close();
+        }
+    }
+}
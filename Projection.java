@@ -0,0 +1,300 @@
+// Owen Gregson, Peter Zhao
+// Algorithms
+// Final Project
+// May 18, 2024
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+public class Projection {
+
+    // A principal component projection of images: the d directions along which a
+    // sample of the items has the most energy, and each item's coordinates along
+    // them as floats.  Clustering the coordinates instead of the pixels makes every
+    // distance d operations long instead of 784.
+    //
+    // The components are those of the second moment matrix (the covariance about
+    // the origin rather than about the mean).  Centered components preserve only
+    // differences between items, but cosine distance needs the dot products and
+    // norms themselves, and an uncentered projection keeps both (and differences
+    // too) up to the energy it leaves out.
+    //
+    // The matrix is summed exactly, in integers, in parallel over its rows.  Its
+    // leading eigenvectors are found by subspace iteration (repeated multiplication
+    // of a block of vectors, which are then made orthonormal again) with a
+    // Rayleigh-Ritz step each time, which solves the small problem within the block
+    // by Jacobi rotations and sorts the block by eigenvalue.
+
+    private static final int EXTRA = 8;                 // Vectors iterated beyond the d wanted (faster convergence)
+    private static final int MAX_ITERATIONS = 300;
+    private static final double TOLERANCE = 1e-10;      // Relative change of the eigenvalues at convergence
+
+    private final int length;          // Number of pixels
+    private final double[][] basis;    // basis[j] = component j, as a unit vector over the pixels
+    private final double[] variances;  // The second moment along each component
+    private final double energy;       // The total second moment (the trace of the matrix)
+
+    private Projection(int length, double[][] basis, double[] variances, double energy) {
+        this.length = length;
+        this.basis = basis;
+        this.variances = variances;
+        this.energy = energy;
+    }
+
+    public int dimensions() {
+        return this.basis.length;
+    }
+
+    public double explained() {
+        // The fraction of the sample's energy the components keep
+        return Arrays.stream(this.variances).sum() / this.energy;
+    }
+
+    public static Projection fit(Dataset items, int dimensions, int sampleSize, Random random) {
+        // The leading components of a random sample of sampleSize items (or of all of them)
+        int length = items.length();
+        int d = Math.min(dimensions, length);
+        int[] sample = sampleSize >= items.size()
+            ? IntStream.range(0, items.size()).toArray()
+            : random.ints(sampleSize, 0, items.size()).sorted().toArray();
+        double[][] moments = moments(items, sample);
+        double energy = IntStream.range(0, length).mapToDouble(i -> moments[i][i]).sum();
+
+        int p = Math.min(d + EXTRA, length);
+        double[][] vectors = new double[p][length];
+        for (double[] vector : vectors) {
+            for (int i = 0; i < length; i++) {
+                vector[i] = random.nextGaussian();
+            }
+        }
+        orthonormalize(vectors);
+        double[] values = new double[p];
+        double[][] product = multiply(moments, vectors);
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            orthonormalize(product);
+            vectors = product;
+            double[] previous = values;
+            product = multiply(moments, vectors);
+            // Rotating the product along with the vectors keeps it the matrix times the vectors: the next iteration's product
+            values = rayleighRitz(vectors, product);
+            boolean converged = true;
+            for (int j = 0; j < d; j++) {
+                converged &= Math.abs(values[j] - previous[j]) <= TOLERANCE * values[0];
+            }
+            if (converged) break;
+        }
+        return new Projection(length, Arrays.copyOf(vectors, d), Arrays.copyOf(values, d), energy);
+    }
+
+    private static double[][] moments(Dataset items, int[] sample) {
+        // (1/n) sum x x^T over the sample, one row per task.  A row is summed in ints
+        // (at most Kernels.block(255, 255) products at a time) and then in longs, so
+        // it is exact; each row only reads the samples with a nonzero pixel there, and
+        // only the upper triangle is summed
+        int length = items.length();
+        int block = Kernels.block(255, 255);
+        int[][] pixels = Arrays.stream(sample).mapToObj(i -> Kernels.widen(Final.read(items, i))).toArray(int[][]::new);
+        double[][] moments = new double[length][length];
+        IntStream.range(0, length).parallel().forEach(a -> {
+            long[] total = new long[length];
+            int[] sum = new int[length];
+            for (int start = 0; start < pixels.length; start += block) {
+                Arrays.fill(sum, 0);
+                for (int s = start, end = Math.min(pixels.length, start + block); s < end; s++) {
+                    int value = pixels[s][a];
+                    if (value == 0) continue;
+                    int[] item = pixels[s];
+                    for (int b = a; b < length; b++) {
+                        sum[b] += value * item[b];
+                    }
+                }
+                for (int b = a; b < length; b++) {
+                    total[b] += sum[b];
+                }
+            }
+            for (int b = a; b < length; b++) {
+                moments[a][b] = moments[b][a] = total[b] / (double) pixels.length;
+            }
+        });
+        return moments;
+    }
+
+    private static double[][] multiply(double[][] matrix, double[][] vectors) {
+        // matrix * each vector (the matrix is symmetric, so its rows serve as columns).
+        // The vectors are read pixel-major, so each row adds up whole rows of them
+        int p = vectors.length, length = matrix.length;
+        double[][] byPixel = new double[length][p];
+        for (int j = 0; j < p; j++) {
+            for (int b = 0; b < length; b++) {
+                byPixel[b][j] = vectors[j][b];
+            }
+        }
+        double[][] product = new double[p][length];
+        IntStream.range(0, length).parallel().forEach(a -> {
+            double[] row = matrix[a], sum = new double[p];
+            for (int b = 0; b < length; b++) {
+                double value = row[b];
+                double[] column = byPixel[b];
+                for (int j = 0; j < p; j++) {
+                    sum[j] += value * column[j];
+                }
+            }
+            for (int j = 0; j < p; j++) {
+                product[j][a] = sum[j];
+            }
+        });
+        return product;
+    }
+
+    private static double dotProduct(double[] a, double[] b) {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private static void orthonormalize(double[][] vectors) {
+        // Modified Gram-Schmidt, in place
+        for (int j = 0; j < vectors.length; j++) {
+            for (int i = 0; i < j; i++) {
+                double projection = dotProduct(vectors[j], vectors[i]);
+                for (int b = 0; b < vectors[j].length; b++) {
+                    vectors[j][b] -= projection * vectors[i][b];
+                }
+            }
+            double norm = Math.sqrt(dotProduct(vectors[j], vectors[j]));
+            for (int b = 0; b < vectors[j].length; b++) {
+                vectors[j][b] /= norm;
+            }
+        }
+    }
+
+    private static double[] rayleighRitz(double[][] vectors, double[][] product) {
+        // Rotates the (orthonormal) vectors into the eigenvectors of the matrix within
+        // their span, sorted by decreasing eigenvalue, and returns the eigenvalues; the
+        // product (the matrix times each vector) is rotated with them
+        int p = vectors.length;
+        double[][] small = new double[p][p];
+        for (int i = 0; i < p; i++) {
+            for (int j = i; j < p; j++) {
+                small[i][j] = small[j][i] = dotProduct(vectors[i], product[j]);
+            }
+        }
+        double[][] rotation = jacobi(small);
+        Integer[] order = IntStream.range(0, p).boxed().toArray(Integer[]::new);
+        Arrays.sort(order, (a, b) -> Double.compare(small[b][b], small[a][a]));
+        double[] values = new double[p];
+        int[] columns = new int[p];
+        for (int j = 0; j < p; j++) {
+            columns[j] = order[j];
+            values[j] = small[columns[j]][columns[j]];
+        }
+        rotate(vectors, rotation, columns);
+        rotate(product, rotation, columns);
+        return values;
+    }
+
+    private static void rotate(double[][] vectors, double[][] rotation, int[] columns) {
+        // vectors[j] = sum over i of rotation[i][columns[j]] * vectors[i], in place
+        int p = vectors.length, length = vectors[0].length;
+        double[][] rotated = new double[p][length];
+        for (int j = 0; j < p; j++) {
+            for (int i = 0; i < p; i++) {
+                double weight = rotation[i][columns[j]];
+                for (int b = 0; b < length; b++) {
+                    rotated[j][b] += weight * vectors[i][b];
+                }
+            }
+        }
+        System.arraycopy(rotated, 0, vectors, 0, p);
+    }
+
+    private static double[][] jacobi(double[][] matrix) {
+        // Diagonalizes a small symmetric matrix in place by cyclic Jacobi rotations and
+        // returns the rotation (whose columns are the eigenvectors)
+        int n = matrix.length;
+        double[][] rotation = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            rotation[i][i] = 1.0;
+        }
+        for (int sweep = 0; sweep < 100; sweep++) {
+            double off = 0.0, diagonal = 0.0;
+            for (int i = 0; i < n; i++) {
+                diagonal += matrix[i][i] * matrix[i][i];
+                for (int j = i + 1; j < n; j++) {
+                    off += matrix[i][j] * matrix[i][j];
+                }
+            }
+            if (off <= 1e-30 * diagonal) break;
+            for (int i = 0; i < n; i++) {
+                for (int j = i + 1; j < n; j++) {
+                    if (matrix[i][j] == 0.0) continue;
+                    double theta = (matrix[j][j] - matrix[i][i]) / (2 * matrix[i][j]);
+                    double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    if (theta == 0.0) t = 1.0;
+                    double c = 1 / Math.sqrt(t * t + 1), s = t * c;
+                    for (int m = 0; m < n; m++) {
+                        double a = matrix[m][i], b = matrix[m][j];
+                        matrix[m][i] = c * a - s * b;
+                        matrix[m][j] = s * a + c * b;
+                    }
+                    for (int m = 0; m < n; m++) {
+                        double a = matrix[i][m], b = matrix[j][m];
+                        matrix[i][m] = c * a - s * b;
+                        matrix[j][m] = s * a + c * b;
+                    }
+                    for (int m = 0; m < n; m++) {
+                        double a = rotation[m][i], b = rotation[m][j];
+                        rotation[m][i] = c * a - s * b;
+                        rotation[m][j] = s * a + c * b;
+                    }
+                }
+            }
+        }
+        return rotation;
+    }
+
+    public float[][] project(Dataset items) {
+        // The coordinates of every item along the components.  Only nonzero pixels
+        // contribute, so the components are read pixel-major (one row of d per pixel)
+        int d = dimensions();
+        double[][] byPixel = new double[this.length][d];
+        for (int j = 0; j < d; j++) {
+            for (int b = 0; b < this.length; b++) {
+                byPixel[b][j] = this.basis[j][b];
+            }
+        }
+        float[][] points = new float[items.size()][];
+        IntStream.range(0, items.size()).parallel().forEach(i -> {
+            byte[] pixels = Final.read(items, i);
+            double[] sum = new double[d];
+            for (int b = 0; b < this.length; b++) {
+                int value = pixels[b] & 0xFF;
+                if (value == 0) continue;
+                double[] row = byPixel[b];
+                for (int j = 0; j < d; j++) {
+                    sum[j] += value * row[j];
+                }
+            }
+            float[] point = new float[d];
+            for (int j = 0; j < d; j++) {
+                point[j] = (float) sum[j];
+            }
+            points[i] = point;
+        });
+        return points;
+    }
+
+    public double[] reconstruct(double[] point) {
+        // The pixel values (unclamped) of a point given by its coordinates
+        double[] pixels = new double[this.length];
+        for (int j = 0; j < this.basis.length; j++) {
+            for (int b = 0; b < this.length; b++) {
+                pixels[b] += point[j] * this.basis[j][b];
+            }
+        }
+        return pixels;
+    }
+}
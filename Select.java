@@ -4,7 +4,9 @@
 // May 18, 2024
 
 import java.util.ArrayList;
+import java.util.stream.Stream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 
 public class Select {
 
@@ -32,6 +34,7 @@ public class Select {
         System.out.println("   -digit <digit>      Alternative for -label");
         System.out.println("   -start <ID>         Select images staring with the given image ID");
         System.out.println("   -count <count>      Count of the number of images to select");
+        System.out.println("   -cluster <n>        Select from cluster <n> of a clustering result (-in clusters)");
         System.out.println("   -verbose            Display the image IDs of the selected images");
         System.out.println("   -statistics         Display statistics for the selected images");
         System.out.println("   -stats              Shorthand for -statistics");
@@ -76,6 +79,12 @@ public class Select {
         return select(images, digit, images.length);
     }
 
+    public static Stream<Image> select(Stream<Image> images, int start, int digit, int limit) {
+        return images.filter(image -> digit < 0 || image.label() == digit)
+                     .filter(image -> image.id() >= start)
+                     .limit(limit);
+    }
+
     public static Image[] select(Image[] images, ArrayList<Integer> list) {
         Image[] result = new Image[list.size()];
         int count = 0;
@@ -86,27 +95,36 @@ public class Select {
     }
 
 
-    private static void printStatistics(Image[] images) {
-        int[] count = new int[10];
-        int unknown = 0;
+    private static void count(int[] count, Image image) {
+        // count[0..9] are the number of images per digit; count[10] is unknown labels
+        int label = image.label();
+        if (label < 0) {
+            count[10]++;
+        } else {
+            count[label]++;
+        }
+    }
 
-        for (Image image : images) {
-            int label = image.label();
-            if (label < 0) {
-                unknown++;
-            } else {
-                count[label]++;
-            }
+    private static void printStatistics(int[] count) {
+        int total = 0;
+        for (int value : count) {
+            total += value;
         }
 
-        System.out.printf("Unknown: %d\n", unknown);
+        System.out.printf("Unknown: %d\n", count[10]);
         for (int i = 0; i < 10; i++) {
             System.out.printf("Digit %d: %d\n", i, count[i]);
         }
-        System.out.printf("  TOTAL: %d\n", images.length);
+        System.out.printf("  TOTAL: %d\n", total);
     }
 
 
+    private static void process(Image image, int[] counts, boolean silent, IdxWriter writer) throws IOException {
+        if (!silent) System.out.println(image.id());
+        count(counts, image);
+        if (writer != null) writer.write(image);
+    }
+
     private static int check(String option, String arg) {
         if (option.length() == 0) return 0;
         if (arg.startsWith("-") || arg.startsWith("+")) {
@@ -144,6 +162,7 @@ public class Select {
         int start = 0;
         int count = 0;
         int digit = -1;
+        int cluster = 0;
         int errors = 0;
 
         for (String arg : args) {
@@ -158,6 +177,7 @@ public class Select {
 
                 case "-start":
                 case "-count":
+                case "-cluster":
                 case "-digit":
                 case "-label":
                     option = arg;
@@ -215,6 +235,10 @@ public class Select {
                         count = getIntegerValue(arg, 0);
                         break;
 
+                    case "-cluster":
+                        cluster = getIntegerValue(arg, 1);
+                        break;
+
                     case "-labe;":
                     case "-digit":
                         digit = getIntegerValue(arg, 0);
@@ -255,37 +279,39 @@ public class Select {
 
         if (errors > 0) return;
 
-        Image[] images;
-        try {
-            images = Image.read(inputImageFileName, inputLabelFileName);
-        } catch (IOException e) {
-            System.err.println("Could not read input files: " + e.getMessage());
-            return;
-        }
-
-        if (count <= 0) count = images.length;
-        if (list.size() > 0) {
-            images = select(images, list);
-        } else {
-            images = select(images, start, digit, count);
-        }
-
-        if (!silent) {
-            for (Image image : images) {
-                System.out.println(image.id());
-            }
-        }
-
-        if (output) {
+        // Explicit image IDs need random access to the data set; otherwise the input
+        // is streamed and each selected image is written out as it is read
+        final int[] counts = new int[11];
+        final boolean quiet = silent;
+        try (IdxWriter writer = output ? new IdxWriter(outputImageFileName, outputLabelFileName) : null) {
             try {
-                Image.write(images, outputImageFileName, outputLabelFileName);
-            } catch (IOException e) {
-                System.err.println("Could not write output files: " + e.getMessage());
+                if (list.size() > 0) {
+                    for (Image image : select(Image.read(inputImageFileName, inputLabelFileName), list)) {
+                        process(image, counts, quiet, writer);
+                    }
+                } else {
+                    int[] range = cluster > 0 ? ClusterFile.range(inputImageFileName, cluster - 1) : new int[] { 0, Integer.MAX_VALUE };
+                    try (Stream<Image> stream = Image.stream(inputImageFileName, inputLabelFileName, range[0], range[1])) {
+                        select(stream, start, digit, count > 0 ? count : Integer.MAX_VALUE).forEachOrdered(image -> {
+                            try {
+                                process(image, counts, quiet, writer);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        });
+                    }
+                }
+            } catch (IOException | UncheckedIOException | IllegalArgumentException e) {
+                System.err.println("Could not read input files: " + e.getMessage());
+                return;
             }
+            if (writer != null) writer.commit();
+        } catch (IOException e) {
+            System.err.println("Could not write output files: " + e.getMessage());
         }
 
         if (statistics) {
-            printStatistics(images);
+            printStatistics(counts);
         }
     }
 }
@@ -0,0 +1,98 @@
+// Owen Gregson, Peter Zhao
+// Algorithms
+// Final Project
+// May 18, 2024
+
+import java.util.stream.IntStream;
+
+public class SparseItems {
+
+    // The nonzero pixels of every item of a data set, packed one item after another
+    // (compressed sparse rows): item i's pixels are entries [offsets[i], offsets[i+1])
+    // of indices (the pixel positions, in increasing order) and values.  Most pixels
+    // of a preprocessed digit are 0, so a distance to a dense centroid that only
+    // visits an item's nonzero pixels does a fraction of the work, and adding an
+    // item to a cluster's sums is a scatter-add of those pixels.  The work per pixel
+    // is higher than in the dense kernels, so this only wins below some density; see
+    // DistanceKernel.sparseMaxDensity and Final.sparseItems.  The entries are on the
+    // heap (5 bytes per nonzero pixel) and indexed by int, so a data set with more
+    // than MAX_ENTRIES nonzero pixels has to stay dense.
+
+    public static final int MAX_ENTRIES = Integer.MAX_VALUE - 8;   // The longest array a JVM allocates
+
+    private final int length;      // Number of pixels of each item
+    private final int[] offsets;   // Item i is entries [offsets[i], offsets[i + 1])
+    private final int[] indices;   // The position of each nonzero pixel
+    private final byte[] values;   // The value of each nonzero pixel
+
+    private SparseItems(int length, int[] offsets, int[] indices, byte[] values) {
+        this.length = length;
+        this.offsets = offsets;
+        this.indices = indices;
+        this.values = values;
+    }
+
+    public static SparseItems of(Dataset items) {
+        // Counts each item's nonzero pixels, then (both in parallel) copies them into place
+        int size = items.size(), length = items.length();
+        int[] offsets = new int[size + 1];
+        IntStream.range(0, size).parallel().forEach(i -> offsets[i + 1] = count(Final.read(items, i)));
+        long total = 0;
+        for (int i = 0; i < size; i++) {
+            total += offsets[i + 1];
+            if (total > MAX_ENTRIES) throw new IllegalArgumentException("Too many nonzero pixels for sparse items (over " + MAX_ENTRIES + ")");
+            offsets[i + 1] = (int) total;
+        }
+        int[] indices = new int[offsets[size]];
+        byte[] values = new byte[offsets[size]];
+        IntStream.range(0, size).parallel().forEach(i -> {
+            byte[] pixels = Final.read(items, i);
+            int entry = offsets[i];
+            for (int p = 0; p < length; p++) {
+                if (pixels[p] != 0) {
+                    indices[entry] = p;
+                    values[entry++] = pixels[p];
+                }
+            }
+        });
+        return new SparseItems(length, offsets, indices, values);
+    }
+
+    public static long nonzero(Dataset items) {
+        // The number of pixels of a data set that are not 0
+        return IntStream.range(0, items.size()).parallel().mapToLong(i -> count(Final.read(items, i))).sum();
+    }
+
+    public static double density(Dataset items) {
+        // The fraction of the pixels of a data set that are not 0
+        return nonzero(items) / ((double) items.size() * items.length());
+    }
+
+    private static int count(byte[] pixels) {
+        int count = 0;
+        for (byte pixel : pixels) {
+            if (pixel != 0) count++;
+        }
+        return count;
+    }
+
+    public double density() {
+        return this.values.length / ((double) (this.offsets.length - 1) * this.length);
+    }
+
+    public int start(int item) {
+        return this.offsets[item];
+    }
+
+    public int end(int item) {
+        return this.offsets[item + 1];
+    }
+
+    public int[] indices() {
+        return this.indices;
+    }
+
+    public byte[] values() {
+        return this.values;
+    }
+}
@@ -0,0 +1,75 @@
+// Owen Gregson, Peter Zhao
+// Algorithms
+// Final Project
+// May 18, 2024
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+
+public class TextEncoder {
+
+    // Writes the text forms of images (the same text as Image.toString() and
+    // Image.toString(threshold)) straight to a Writer or other Appendable.  Each row
+    // is assembled in a reused char buffer from a precomputed table of formatted
+    // pixel values, so encoding allocates nothing per pixel or per image.  An encoder
+    // is not thread-safe; use one per thread.
+
+    private static final char[] NUMBERS = new char[256 * 4];   // " %3d" for each pixel value
+
+    static {
+        for (int value = 0; value < 256; value++) {
+            String text = String.format(" %3s", value);
+            text.getChars(0, 4, NUMBERS, value * 4);
+        }
+    }
+
+    private byte[] pixels = new byte[0];   // The pixels of the image being encoded
+    private char[] line = new char[0];     // The text of the row being encoded
+
+    private void load(Image image, int width) {
+        int length = image.rows() * image.columns();
+        if (this.pixels.length < length) this.pixels = new byte[length];
+        if (this.line.length < width) this.line = new char[width];
+        image.copy(this.pixels, 0);
+    }
+
+    private static void append(Appendable output, char[] text, int count) throws IOException {
+        if (output instanceof Writer) {
+            ((Writer) output).write(text, 0, count);
+        } else if (output instanceof StringBuilder) {
+            ((StringBuilder) output).append(text, 0, count);
+        } else {
+            output.append(CharBuffer.wrap(text, 0, count));
+        }
+    }
+
+    public void write(Image image, Appendable output) throws IOException {
+        // The numerical pixel values, right-aligned in columns; newlines separate the rows
+        int rows = image.rows(), columns = image.columns();
+        load(image, columns * 4 + 1);
+        for (int row = 0; row < rows; row++) {
+            int count = 0;
+            if (row > 0) this.line[count++] = '\n';
+            for (int col = 0; col < columns; col++) {
+                System.arraycopy(NUMBERS, (this.pixels[row * columns + col] & 0xFF) * 4, this.line, count, 4);
+                count += 4;
+            }
+            append(output, this.line, count);
+        }
+    }
+
+    public void write(Image image, int threshold, Appendable output) throws IOException {
+        // ASCII art: pixels >= threshold are '*' and all others are ' '
+        int rows = image.rows(), columns = image.columns();
+        load(image, columns + 1);
+        for (int row = 0; row < rows; row++) {
+            int count = 0;
+            if (row > 0) this.line[count++] = '\n';
+            for (int col = 0; col < columns; col++) {
+                this.line[count++] = (this.pixels[row * columns + col] & 0xFF) >= threshold ? '*' : ' ';
+            }
+            append(output, this.line, count);
+        }
+    }
+}
@@ -4,7 +4,15 @@
 // May 18, 2024
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.stream.Stream;
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 
 public class View {
 
@@ -40,25 +48,38 @@ public class View {
         System.out.println("   -threshold <value>  Threshold value for black level (displayed as *)");
         System.out.println("   -label <label>      Only display images for the specified label");
         System.out.println("   -digit <digit>      Alternative for -label");
+        System.out.println("   -cluster <n>        Only display cluster <n> of a clustering result (-in clusters)");
         System.out.println("   -scale <scale>      Scale each image by the specified scaling factor");
         System.out.println("   -sleep <msec>       Display all images for <msec> milliseconds each");
         System.out.println("   <image id>          Explicit set of image IDs to display");
         System.out.println();
     }
 
-    private static void dump(Image image, int threshold) {
-        System.out.printf("Image #%d:  %d\n", image.id(), image.label());
+    private static void dump(Image image, int threshold, TextEncoder encoder, Writer output) throws IOException {
+        output.write("Image #" + image.id() + ":  " + image.label() + "\n");
         if (threshold > 0) {
-            System.out.println(image.toString(threshold));
+            encoder.write(image, threshold, output);
         } else {
-            System.out.println(image.toString());
+            encoder.write(image, output);
         }
-        System.out.println();
+        output.write(System.lineSeparator());
+        output.write(System.lineSeparator());
     }
 
-    private static void dump(Image[] images, int threshold) {
-        for (Image image : images) {
-            dump(image, threshold);
+    private static void dump(Stream<Image> images, int threshold) throws IOException {
+        // All text goes through one encoder into one buffered writer, flushed at the end
+        Writer output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out)), 1 << 16);
+        TextEncoder encoder = new TextEncoder();
+        try {
+            images.forEachOrdered(image -> {
+                try {
+                    dump(image, threshold, encoder, output);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } finally {
+            output.flush();
         }
     }
 
@@ -104,6 +125,7 @@ public class View {
         boolean classify = false;
         boolean dump = false;
         int threshold = 0;
+        int cluster = 0;
         int scale = 10;
         int sleep = 0;
         int errors = 0;
@@ -150,6 +172,7 @@ public class View {
                 case "-labels":
                 case "-digit":
                 case "-label":
+                case "-cluster":
                 case "-sleep":
                 case "-scale":
                 case "-threshold":
@@ -195,6 +218,11 @@ public class View {
                         option = "";
                         continue;
 
+                    case "-cluster":
+                        cluster = checkValue(arg, 1, Integer.MAX_VALUE);
+                        option = "";
+                        continue;
+
                     case "-scale":
                         scale = checkValue(arg, 0, 25);
                         option = "";
@@ -231,6 +259,24 @@ public class View {
 
         if (errors > 0) return;
 
+        int[] range = { 0, Integer.MAX_VALUE };
+        try {
+            if (cluster > 0) range = ClusterFile.range(imageFileName, cluster - 1);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Could not read cluster index: " + e.getMessage());
+            return;
+        }
+
+        if (dump && list.size() == 0) {
+            // Dumps are streamed, so data sets of any size are dumped in constant memory
+            try (Stream<Image> stream = Image.stream(imageFileName, labelFileName, range[0], range[1])) {
+                dump(stream.filter(image -> label < 0 || image.label() == label), threshold);
+            } catch (IOException | UncheckedIOException e) {
+                System.err.println("Could not read dataset: " + e.getMessage());
+            }
+            return;
+        }
+
         try {
             images = Image.read(imageFileName, labelFileName);
         } catch (IOException e) {
@@ -238,6 +284,10 @@ public class View {
             return;
         }
 
+        if (cluster > 0) {
+            images = Arrays.copyOfRange(images, range[0], range[1]);
+        }
+
         if (list.size() > 0) {
             images = get(images, list);
         }
@@ -246,7 +296,11 @@ public class View {
         }
 
         if (dump) {
-            dump(images, threshold);
+            try {
+                dump(Arrays.stream(images), threshold);
+            } catch (IOException | UncheckedIOException e) {
+                System.err.println("Could not write dump: " + e.getMessage());
+            }
 
         } else {
             String title = classify ? "Clusters" : "MNIST";